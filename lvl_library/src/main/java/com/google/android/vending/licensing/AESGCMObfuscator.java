@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.os.Build;
+
+import com.google.android.vending.licensing.util.Base64;
+import com.google.android.vending.licensing.util.Base64Codec;
+import com.google.android.vending.licensing.util.Base64DecoderException;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An Obfuscator that uses AES in GCM mode to encrypt data. Requires API
+ * level 19 or higher. It may be used from several threads at once.
+ * <p>
+ * Values are stored as a version byte, a random 12-byte nonce and the
+ * ciphertext with its 16-byte authentication tag. The key under which the
+ * value is stored is authenticated along with it as associated data, so a
+ * value copied to another key, or changed in any way, is rejected by the
+ * cipher. Compared to {@link AESObfuscator} there is no plaintext header to
+ * store and search for, and no padding.
+ * <p>
+ * Values written by an {@link AESObfuscator} created with the same arguments
+ * can still be read. {@link PreferenceObfuscator} uses
+ * {@link #isCurrentFormat(String)} to rewrite such values in the new format
+ * when they are read, so they are migrated with the next commit.
+ */
+public class AESGCMObfuscator implements ByteObfuscator, BatchObfuscator {
+    private static final String UTF8 = "UTF-8";
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final byte VERSION = 1;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int OVERHEAD = 1 + NONCE_LENGTH + TAG_LENGTH;
+    // Label for deriving the GCM key from the PBKDF key, so the two modes never share a key.
+    private static final byte[] KEY_LABEL =
+            utf8("com.google.android.vending.licensing.AESGCMObfuscator-1");
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final byte[] mSalt;
+    private final String mPassword;
+    private final AESObfuscator mLegacy;
+    private volatile SecretKey mKey;
+    // Ciphers are not thread-safe, so each call borrows one. The pools grow to the number of
+    // threads that have used the obfuscator at the same time.
+    private final Queue<Cipher> mEncryptors = new ConcurrentLinkedQueue<Cipher>();
+    private final Queue<Cipher> mDecryptors = new ConcurrentLinkedQueue<Cipher>();
+
+    /**
+     * The key is derived in the background, like that of
+     * {@link AESObfuscator}, and is shared with obfuscators of either kind
+     * created with the same arguments.
+     *
+     * @param salt an array of random bytes to use for each (un)obfuscation
+     * @param applicationId application identifier, e.g. the package name
+     * @param deviceId device identifier. Use as many sources as possible to
+     *    create this unique identifier.
+     * @throws UnsupportedOperationException below API level 19
+     */
+    public AESGCMObfuscator(byte[] salt, String applicationId, String deviceId) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            throw new UnsupportedOperationException("AES-GCM requires API level 19");
+        }
+        mSalt = salt.clone();
+        mPassword = applicationId + deviceId;
+        // Also starts the key derivation.
+        mLegacy = new AESObfuscator(salt, applicationId, deviceId);
+    }
+
+    /**
+     * Returns whether a value returned by {@link #obfuscate(String, String)}
+     * is in the current format. Values in the older {@link AESObfuscator}
+     * format are still readable but should be rewritten. The check only looks
+     * at the version byte, so about one in 256 older values is taken to be
+     * current; those keep being read through the fallback.
+     */
+    public boolean isCurrentFormat(String obfuscated) {
+        // The version byte and the top of the nonce encode to "A" followed by one of "Q".."f".
+        if (obfuscated == null || obfuscated.length() < 2 || obfuscated.charAt(0) != 'A') {
+            return false;
+        }
+        char c = obfuscated.charAt(1);
+        return (c >= 'Q' && c <= 'Z') || (c >= 'a' && c <= 'f');
+    }
+
+    /**
+     * Takes a cipher from the pool, or creates one if the pool is empty. The
+     * caller initializes it with a nonce and must return it with
+     * {@code pool.offer()} after a successful doFinal(); a cipher that failed
+     * is simply dropped.
+     */
+    private Cipher acquireCipher(Queue<Cipher> pool) {
+        Cipher cipher = pool.poll();
+        if (cipher != null) {
+            return cipher;
+        }
+        try {
+            return Cipher.getInstance(CIPHER_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            // This can't happen on a compatible Android device.
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    private SecretKey getKey() {
+        SecretKey key = mKey;
+        if (key == null) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(DerivedKeyRegistry.getKey(mSalt, mPassword));
+                key = new SecretKeySpec(mac.doFinal(KEY_LABEL), "AES");
+            } catch (GeneralSecurityException e) {
+                // This can't happen on a compatible Android device.
+                throw new RuntimeException("Invalid environment", e);
+            }
+            mKey = key;
+        }
+        return key;
+    }
+
+    public String obfuscate(String original, String key) {
+        if (original == null) {
+            return null;
+        }
+        return Base64Codec.encode(obfuscate(utf8(original), utf8(key)));
+    }
+
+    public String unobfuscate(String obfuscated, String key) throws ValidationException {
+        if (obfuscated == null) {
+            return null;
+        }
+        try {
+            byte[] encrypted = Base64Codec.decode(obfuscated);
+            byte[] result = new byte[encrypted.length];
+            int length = unobfuscate(ByteBuffer.wrap(encrypted), utf8(key),
+                    ByteBuffer.wrap(result));
+            return new String(result, 0, length, UTF8);
+        } catch (Base64DecoderException e) {
+            throw new ValidationException(e.getMessage() + ":" + obfuscated);
+        } catch (ValidationException e) {
+            throw new ValidationException(e.getMessage() + ":" + obfuscated);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    public int getObfuscatedSize(int length, byte[] key) {
+        return OVERHEAD + length;
+    }
+
+    public byte[] obfuscate(byte[] original, byte[] key) {
+        byte[] result = new byte[getObfuscatedSize(original.length, key)];
+        obfuscate(ByteBuffer.wrap(original), key, ByteBuffer.wrap(result));
+        return result;
+    }
+
+    public int obfuscate(ByteBuffer original, byte[] key, ByteBuffer out) {
+        int size = getObfuscatedSize(original.remaining(), key);
+        if (out.remaining() < size) {
+            throw new IllegalArgumentException("Output buffer too small");
+        }
+        Cipher encryptor = acquireCipher(mEncryptors);
+        try {
+            encrypt(encryptor, original, key, out);
+            mEncryptors.offer(encryptor);
+            return size;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    private void encrypt(Cipher encryptor, ByteBuffer original, byte[] key, ByteBuffer out)
+            throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        sRandom.nextBytes(nonce);
+        encryptor.init(Cipher.ENCRYPT_MODE, getKey(), new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        encryptor.updateAAD(key);
+        out.put(VERSION);
+        out.put(nonce);
+        encryptor.doFinal(original, out);
+    }
+
+    public byte[] unobfuscate(byte[] obfuscated, byte[] key) throws ValidationException {
+        byte[] result = new byte[obfuscated.length];
+        int length = unobfuscate(ByteBuffer.wrap(obfuscated), key, ByteBuffer.wrap(result));
+        byte[] trimmed = new byte[length];
+        System.arraycopy(result, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    public int unobfuscate(ByteBuffer obfuscated, byte[] key, ByteBuffer out)
+            throws ValidationException {
+        if (out.remaining() < obfuscated.remaining()) {
+            throw new IllegalArgumentException("Output buffer too small");
+        }
+        Cipher decryptor = acquireCipher(mDecryptors);
+        int length = decrypt(decryptor, obfuscated, key, out);
+        mDecryptors.offer(decryptor);
+        return length;
+    }
+
+    /**
+     * Decrypts and checks one value, falling back to the older format. The
+     * cipher is initialized afresh for every value, so it stays usable if
+     * this throws.
+     */
+    private int decrypt(Cipher decryptor, ByteBuffer obfuscated, byte[] key, ByteBuffer out)
+            throws ValidationException {
+        int inputStart = obfuscated.position();
+        int outputStart = out.position();
+        if (obfuscated.remaining() < OVERHEAD || obfuscated.get(inputStart) != VERSION) {
+            return mLegacy.unobfuscate(obfuscated, key, out);
+        }
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        obfuscated.get();
+        obfuscated.get(nonce);
+        try {
+            decryptor.init(Cipher.DECRYPT_MODE, getKey(),
+                    new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            decryptor.updateAAD(key);
+            return decryptor.doFinal(obfuscated, out);
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException("Output buffer too small");
+        } catch (GeneralSecurityException e) {
+            // Either tampered with, or an older value that happens to start with the version.
+            obfuscated.position(inputStart);
+            out.position(outputStart);
+            try {
+                return mLegacy.unobfuscate(obfuscated, key, out);
+            } catch (ValidationException legacyError) {
+                throw new ValidationException(e.getMessage());
+            }
+        }
+    }
+
+    public String[] obfuscate(String[] originals, String[] keys) {
+        String[] results = new String[originals.length];
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        ByteBuffer encoded = ByteBuffer.allocate(0);
+        Cipher encryptor = acquireCipher(mEncryptors);
+        try {
+            for (int i = 0; i < originals.length; i++) {
+                if (originals[i] == null) {
+                    continue;
+                }
+                byte[] original = utf8(originals[i]);
+                byte[] key = utf8(keys[i]);
+                buffer = AESObfuscator.ensureCapacity(buffer,
+                        getObfuscatedSize(original.length, key));
+                encrypt(encryptor, ByteBuffer.wrap(original), key, buffer);
+                encoded = AESObfuscator.ensureCapacity(encoded,
+                        Base64.encodedLength(buffer.position(), true));
+                int encodedLength = Base64.encodeTo(buffer.array(), 0, buffer.position(), encoded);
+                results[i] = new String(encoded.array(), 0, encodedLength);
+            }
+            mEncryptors.offer(encryptor);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+        return results;
+    }
+
+    public String[] unobfuscate(String[] obfuscated, String[] keys) {
+        String[] results = new String[obfuscated.length];
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        ByteBuffer encrypted = ByteBuffer.allocate(0);
+        Cipher decryptor = acquireCipher(mDecryptors);
+        for (int i = 0; i < obfuscated.length; i++) {
+            if (obfuscated[i] == null) {
+                continue;
+            }
+            try {
+                byte[] encoded = obfuscated[i].getBytes();
+                encrypted = AESObfuscator.ensureCapacity(encrypted,
+                        Base64.decodedLength(encoded, 0, encoded.length));
+                Base64.decodeTo(encoded, 0, encoded.length, encrypted);
+                encrypted.flip();
+                buffer = AESObfuscator.ensureCapacity(buffer, encrypted.remaining());
+                int length = decrypt(decryptor, encrypted, utf8(keys[i]), buffer);
+                results[i] = new String(buffer.array(), 0, length, UTF8);
+            } catch (Base64DecoderException e) {
+                // Left null.
+            } catch (ValidationException e) {
+                // Left null.
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Invalid environment", e);
+            }
+        }
+        mDecryptors.offer(decryptor);
+        return results;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+}
@@ -17,52 +17,98 @@
 package com.google.android.vending.licensing;
 
 import com.google.android.vending.licensing.util.Base64;
+import com.google.android.vending.licensing.util.Base64Codec;
 import com.google.android.vending.licensing.util.Base64DecoderException;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.spec.KeySpec;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
- * An Obfuscator that uses AES to encrypt data.
+ * An Obfuscator that uses AES to encrypt data. It may be used from several
+ * threads at once.
+ * <p>
+ * The String methods encrypt the UTF-8 encoding of the data and Base64-encode
+ * the result; the byte methods produce the same ciphertext without the
+ * Base64 step.
  */
-public class AESObfuscator implements Obfuscator {
+public class AESObfuscator implements ByteObfuscator, BatchObfuscator {
     private static final String UTF8 = "UTF-8";
-    private static final String KEYGEN_ALGORITHM = "PBEWITHSHAAND256BITAES-CBC-BC";
     private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
     private static final byte[] IV =
         { 16, 74, 71, -80, 32, 101, -47, 72, 117, -14, 0, -29, 70, 65, -12, 74 };
-    private static final String header = "com.google.android.vending.licensing.AESObfuscator-1|";
+    private static final int BLOCK_SIZE = 16;
+    private static final byte[] HEADER =
+            utf8("com.google.android.vending.licensing.AESObfuscator-1|");
 
-    private Cipher mEncryptor;
-    private Cipher mDecryptor;
+    private final byte[] mSalt;
+    private final String mPassword;
+    private volatile SecretKey mKey;
+    // Ciphers are not thread-safe, so each call borrows one. The pools grow to the number of
+    // threads that have used the obfuscator at the same time.
+    private final Queue<Cipher> mEncryptors = new ConcurrentLinkedQueue<Cipher>();
+    private final Queue<Cipher> mDecryptors = new ConcurrentLinkedQueue<Cipher>();
 
     /**
+     * The key is derived in the background, since key derivation is expensive
+     * and the obfuscator is typically created on the UI thread but used from a
+     * background thread. Obfuscators created with the same arguments share one
+     * key, so only the first one pays for the derivation.
+     *
      * @param salt an array of random bytes to use for each (un)obfuscation
      * @param applicationId application identifier, e.g. the package name
      * @param deviceId device identifier. Use as many sources as possible to
      *    create this unique identifier.
      */
     public AESObfuscator(byte[] salt, String applicationId, String deviceId) {
+        mSalt = salt.clone();
+        mPassword = applicationId + deviceId;
+        DerivedKeyRegistry.prefetch(mSalt, mPassword);
+    }
+
+    /**
+     * Starts deriving the key for the given arguments in the background, so
+     * that it is ready by the time an obfuscator created with the same
+     * arguments is first used. Call this as early as possible, for example
+     * from {@code Application.onCreate()}.
+     *
+     * @param salt an array of random bytes to use for each (un)obfuscation
+     * @param applicationId application identifier, e.g. the package name
+     * @param deviceId device identifier
+     */
+    public static void prefetchKey(byte[] salt, String applicationId, String deviceId) {
+        DerivedKeyRegistry.prefetch(salt.clone(), applicationId + deviceId);
+    }
+
+    /**
+     * Takes a cipher from the pool, or creates one if the pool is empty,
+     * waiting for the key if necessary. The caller must return it with
+     * {@code pool.offer()} after a successful doFinal(), which leaves it ready
+     * for the next use; a cipher that failed is simply dropped.
+     */
+    private Cipher acquireCipher(Queue<Cipher> pool, int mode) {
+        Cipher cipher = pool.poll();
+        if (cipher != null) {
+            return cipher;
+        }
+        SecretKey key = mKey;
+        if (key == null) {
+            key = DerivedKeyRegistry.getKey(mSalt, mPassword);
+            mKey = key;
+        }
         try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEYGEN_ALGORITHM);
-            KeySpec keySpec =
-                new PBEKeySpec((applicationId + deviceId).toCharArray(), salt, 1024, 256);
-            SecretKey tmp = factory.generateSecret(keySpec);
-            SecretKey secret = new SecretKeySpec(tmp.getEncoded(), "AES");
-            mEncryptor = Cipher.getInstance(CIPHER_ALGORITHM);
-            mEncryptor.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(IV));
-            mDecryptor = Cipher.getInstance(CIPHER_ALGORITHM);
-            mDecryptor.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(IV));
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(mode, key, new IvParameterSpec(IV));
+            return cipher;
         } catch (GeneralSecurityException e) {
             // This can't happen on a compatible Android device.
             throw new RuntimeException("Invalid environment", e);
@@ -73,36 +119,211 @@ public class AESObfuscator implements Obfuscator {
         if (original == null) {
             return null;
         }
+        return Base64Codec.encode(obfuscate(utf8(original), utf8(key)));
+    }
+
+    public String unobfuscate(String obfuscated, String key) throws ValidationException {
+        if (obfuscated == null) {
+            return null;
+        }
         try {
-            // Header is appended as an integrity check
-            return Base64.encode(mEncryptor.doFinal((header + key + original).getBytes(UTF8)));
+            byte[] encrypted = Base64Codec.decode(obfuscated);
+            byte[] result = new byte[encrypted.length];
+            int length = unobfuscate(ByteBuffer.wrap(encrypted), utf8(key),
+                    ByteBuffer.wrap(result));
+            return new String(result, 0, length, UTF8);
+        } catch (Base64DecoderException e) {
+            throw new ValidationException(e.getMessage() + ":" + obfuscated);
+        } catch (ValidationException e) {
+            throw new ValidationException(e.getMessage() + ":" + obfuscated);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    public int getObfuscatedSize(int length, byte[] key) {
+        // PKCS5 padding always adds between 1 and BLOCK_SIZE bytes.
+        return ((HEADER.length + key.length + length) / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    public byte[] obfuscate(byte[] original, byte[] key) {
+        byte[] result = new byte[getObfuscatedSize(original.length, key)];
+        obfuscate(ByteBuffer.wrap(original), key, ByteBuffer.wrap(result));
+        return result;
+    }
+
+    public int obfuscate(ByteBuffer original, byte[] key, ByteBuffer out) {
+        if (out.remaining() < getObfuscatedSize(original.remaining(), key)) {
+            throw new IllegalArgumentException("Output buffer too small");
+        }
+        Cipher encryptor = acquireCipher(mEncryptors, Cipher.ENCRYPT_MODE);
+        try {
+            int length = encrypt(encryptor, original, key, out);
+            mEncryptors.offer(encryptor);
+            return length;
         } catch (GeneralSecurityException e) {
             throw new RuntimeException("Invalid environment", e);
         }
     }
 
-    public String unobfuscate(String obfuscated, String key) throws ValidationException {
-        if (obfuscated == null) {
-            return null;
+    private static int encrypt(Cipher encryptor, ByteBuffer original, byte[] key, ByteBuffer out)
+            throws GeneralSecurityException {
+        // Header is prepended as an integrity check. The parts are chained through the
+        // cipher rather than concatenated first.
+        int length = encryptor.update(ByteBuffer.wrap(HEADER), out);
+        length += encryptor.update(ByteBuffer.wrap(key), out);
+        length += encryptor.doFinal(original, out);
+        return length;
+    }
+
+    public byte[] unobfuscate(byte[] obfuscated, byte[] key) throws ValidationException {
+        byte[] result = new byte[obfuscated.length];
+        int length = unobfuscate(ByteBuffer.wrap(obfuscated), key, ByteBuffer.wrap(result));
+        if (length == result.length) {
+            return result;
         }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(result, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    public int unobfuscate(ByteBuffer obfuscated, byte[] key, ByteBuffer out)
+            throws ValidationException {
+        if (out.remaining() < obfuscated.remaining()) {
+            throw new IllegalArgumentException("Output buffer too small");
+        }
+        Cipher decryptor = acquireCipher(mDecryptors, Cipher.DECRYPT_MODE);
+        int length = decrypt(decryptor, obfuscated, key, out);
+        mDecryptors.offer(decryptor);
+        return length;
+    }
+
+    /**
+     * Decrypts and checks one value. The cipher must be dropped if this
+     * throws.
+     */
+    private static int decrypt(Cipher decryptor, ByteBuffer obfuscated, byte[] key,
+            ByteBuffer out) throws ValidationException {
+        int start = out.position();
+        int length;
         try {
-            String result = new String(mDecryptor.doFinal(Base64.decode(obfuscated)), UTF8);
-            // Check for presence of header. This serves as a final integrity check, for cases
-            // where the block size is correct during decryption.
-            int headerIndex = result.indexOf(header+key);
-            if (headerIndex != 0) {
-                throw new ValidationException("Header not found (invalid data or key)" + ":" +
-                        obfuscated);
-            }
-            return result.substring(header.length()+key.length(), result.length());
-        } catch (Base64DecoderException e) {
-            throw new ValidationException(e.getMessage() + ":" + obfuscated);
+            length = decryptor.doFinal(obfuscated, out);
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException("Output buffer too small");
         } catch (IllegalBlockSizeException e) {
-            throw new ValidationException(e.getMessage() + ":" + obfuscated);
+            throw new ValidationException(e.getMessage());
         } catch (BadPaddingException e) {
-            throw new ValidationException(e.getMessage() + ":" + obfuscated);
+            throw new ValidationException(e.getMessage());
+        }
+
+        // Check for presence of header. This serves as a final integrity check, for cases
+        // where the block size is correct during decryption.
+        int prefixLength = HEADER.length + key.length;
+        if (length < prefixLength || !regionMatches(out, start, HEADER)
+                || !regionMatches(out, start + HEADER.length, key)) {
+            out.position(start);
+            throw new ValidationException("Header not found (invalid data or key)");
+        }
+
+        // Move the original data down over the header.
+        int dataLength = length - prefixLength;
+        if (out.hasArray()) {
+            int offset = out.arrayOffset() + start;
+            System.arraycopy(out.array(), offset + prefixLength, out.array(), offset, dataLength);
+        } else {
+            for (int i = 0; i < dataLength; i++) {
+                out.put(start + i, out.get(start + prefixLength + i));
+            }
+        }
+        out.position(start + dataLength);
+        return dataLength;
+    }
+
+    public String[] obfuscate(String[] originals, String[] keys) {
+        String[] results = new String[originals.length];
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        ByteBuffer encoded = ByteBuffer.allocate(0);
+        Cipher encryptor = acquireCipher(mEncryptors, Cipher.ENCRYPT_MODE);
+        try {
+            for (int i = 0; i < originals.length; i++) {
+                if (originals[i] == null) {
+                    continue;
+                }
+                byte[] original = utf8(originals[i]);
+                byte[] key = utf8(keys[i]);
+                buffer = ensureCapacity(buffer, getObfuscatedSize(original.length, key));
+                int length = encrypt(encryptor, ByteBuffer.wrap(original), key, buffer);
+                encoded = ensureCapacity(encoded, Base64.encodedLength(length, true));
+                int encodedLength = Base64.encodeTo(buffer.array(), 0, length, encoded);
+                results[i] = new String(encoded.array(), 0, encodedLength);
+            }
+            mEncryptors.offer(encryptor);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+        return results;
+    }
+
+    public String[] unobfuscate(String[] obfuscated, String[] keys) {
+        String[] results = new String[obfuscated.length];
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        ByteBuffer encrypted = ByteBuffer.allocate(0);
+        Cipher decryptor = null;
+        for (int i = 0; i < obfuscated.length; i++) {
+            if (obfuscated[i] == null) {
+                continue;
+            }
+            try {
+                byte[] encoded = obfuscated[i].getBytes();
+                encrypted = ensureCapacity(encrypted,
+                        Base64.decodedLength(encoded, 0, encoded.length));
+                Base64.decodeTo(encoded, 0, encoded.length, encrypted);
+                encrypted.flip();
+                buffer = ensureCapacity(buffer, encrypted.remaining());
+                if (decryptor == null) {
+                    decryptor = acquireCipher(mDecryptors, Cipher.DECRYPT_MODE);
+                }
+                int length = decrypt(decryptor, encrypted, utf8(keys[i]), buffer);
+                results[i] = new String(buffer.array(), 0, length, UTF8);
+            } catch (Base64DecoderException e) {
+                // Left null.
+            } catch (ValidationException e) {
+                // Left null; the cipher may be in an undefined state now.
+                decryptor = null;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Invalid environment", e);
+            }
+        }
+        if (decryptor != null) {
+            mDecryptors.offer(decryptor);
+        }
+        return results;
+    }
+
+    /**
+     * Returns a cleared heap buffer with room for at least size bytes,
+     * reusing the given one if it is large enough.
+     */
+    static ByteBuffer ensureCapacity(ByteBuffer buffer, int size) {
+        if (buffer.capacity() < size) {
+            return ByteBuffer.allocate(Math.max(size, 2 * buffer.capacity()));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static boolean regionMatches(ByteBuffer buffer, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes(UTF8);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("Invalid environment", e);
         }
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+/**
+ * Implemented by a {@link Policy} that loads its cached data in the
+ * background, and whose decisions block until that data has been loaded.
+ * <p>
+ * {@link LicenseChecker#checkAccess} answers from the cache on the calling
+ * thread only once {@link #isLoaded()} is true; until then it runs the check
+ * on its own background thread.
+ */
+public interface BackgroundLoadingPolicy {
+
+    /**
+     * @return true if the cached data has been loaded, so that the policy's
+     *         methods will not block on it
+     */
+    boolean isLoaded();
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+/**
+ * An {@link Obfuscator} that can work on several values in one call.
+ * <p>
+ * {@link PreferenceObfuscator#getStrings(String[], String)} and
+ * {@link PreferenceObfuscator#putStrings(String[], String[])} use these
+ * methods when the obfuscator implements them, so an implementation can set
+ * up its cipher and buffers once per batch instead of once per value.
+ */
+public interface BatchObfuscator extends Obfuscator {
+
+    /**
+     * Obfuscates several strings, as if by calling
+     * {@link #obfuscate(String, String)} for each.
+     *
+     * @param originals The data that is to be obfuscated.
+     * @param keys The keys for the data, in the same order.
+     * @return the transformed values, in the same order
+     */
+    String[] obfuscate(String[] originals, String[] keys);
+
+    /**
+     * Undoes the transformation applied to several values. A value that
+     * fails the integrity check does not fail the batch; it is returned as
+     * null instead.
+     *
+     * @param obfuscated The data that is to be un-obfuscated.
+     * @param keys The keys for the data, in the same order.
+     * @return the original values, in the same order; null for values that
+     *         are null or could not be validated
+     */
+    String[] unobfuscate(String[] obfuscated, String[] keys);
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link Obfuscator} that can also work on bytes.
+ * <p>
+ * Storage that keeps binary data, such as a file, can use these methods to
+ * skip converting values to Strings and the obfuscated data to Base64. The
+ * buffer methods read from and write into caller-supplied buffers, so they
+ * need no intermediate arrays either. Keys are given as bytes; callers using
+ * both APIs should pass the UTF-8 encoding of the String key.
+ */
+public interface ByteObfuscator extends Obfuscator {
+
+    /**
+     * Returns the number of bytes needed to hold the obfuscated form of data
+     * of the given length under the given key.
+     */
+    int getObfuscatedSize(int length, byte[] key);
+
+    /**
+     * Obfuscate a byte array.
+     *
+     * @param original The data that is to be obfuscated.
+     * @param key The key for the data that is to be obfuscated.
+     * @return A transformed version of the original data.
+     */
+    byte[] obfuscate(byte[] original, byte[] key);
+
+    /**
+     * Obfuscates the remaining bytes of original into out. On return,
+     * original has been consumed and out's position has advanced past the
+     * obfuscated data.
+     *
+     * @param original The data that is to be obfuscated.
+     * @param key The key for the data that is to be obfuscated.
+     * @param out receives the obfuscated data; must have at least
+     *            {@link #getObfuscatedSize(int, byte[])} bytes remaining
+     * @return the number of bytes written to out
+     * @throws IllegalArgumentException if out is too small
+     */
+    int obfuscate(ByteBuffer original, byte[] key, ByteBuffer out);
+
+    /**
+     * Undo the transformation applied to data by the obfuscate() methods.
+     *
+     * @param obfuscated The data that is to be un-obfuscated.
+     * @param key The key for the data that is to be un-obfuscated.
+     * @return The original data.
+     * @throws ValidationException Optionally thrown if a data integrity check fails.
+     */
+    byte[] unobfuscate(byte[] obfuscated, byte[] key) throws ValidationException;
+
+    /**
+     * Undoes the transformation applied by the obfuscate() methods, reading
+     * the remaining bytes of obfuscated and writing the original data to out.
+     * On return, out's position has advanced past the original data; the
+     * bytes after it may have been used as scratch space.
+     *
+     * @param obfuscated The data that is to be un-obfuscated.
+     * @param key The key for the data that is to be un-obfuscated.
+     * @param out receives the original data; must have at least
+     *            obfuscated.remaining() bytes remaining
+     * @return the number of bytes written to out
+     * @throws ValidationException Optionally thrown if a data integrity check fails.
+     * @throws IllegalArgumentException if out is too small
+     */
+    int unobfuscate(ByteBuffer obfuscated, byte[] key, ByteBuffer out)
+            throws ValidationException;
+}
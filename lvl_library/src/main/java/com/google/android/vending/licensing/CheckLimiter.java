@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+/**
+ * Implemented by a {@link Policy} that limits how often {@link LicenseChecker}
+ * contacts the licensing service.
+ * <p>
+ * Before a check goes to the server, {@link LicenseChecker} calls
+ * {@link #tryAcquire()}. If that returns false, the check is answered with
+ * {@link #getCachedResponse()} instead.
+ */
+public interface CheckLimiter {
+
+    /**
+     * Takes a token for a check that is about to go to the server.
+     *
+     * @return true if the check may go ahead, false if the budget is used up
+     */
+    boolean tryAcquire();
+
+    /**
+     * Returns the answer for a check that may not go to the server.
+     *
+     * @return LICENSED, NOT_LICENSED or RETRY
+     */
+    int getCachedResponse();
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import com.google.android.vending.licensing.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.KeySpec;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives the AES keys of {@link AESObfuscator} once per process.
+ * <p>
+ * Key derivation runs 1024 PBKDF iterations, which is one of the most
+ * expensive steps of a cold license check on slow devices. Every policy
+ * builds its own obfuscator, usually from the same salt, application id and
+ * device id, so keys are kept here by those inputs and shared by all
+ * obfuscators built from them.
+ * <p>
+ * Derivation can be started ahead of time on the {@link PersistenceThread}
+ * with {@link #prefetch(byte[], String)}. A caller that needs the key before
+ * then derives it on its own thread, and callers that arrive while a
+ * derivation is running wait for it instead of starting another.
+ */
+final class DerivedKeyRegistry {
+
+    private static final String KEYGEN_ALGORITHM = "PBEWITHSHAAND256BITAES-CBC-BC";
+
+    private static final ConcurrentMap<String, FutureTask<SecretKey>> sKeys =
+            new ConcurrentHashMap<String, FutureTask<SecretKey>>();
+
+    private DerivedKeyRegistry() {
+    }
+
+    /**
+     * Starts deriving the key in the background, if that has not happened
+     * yet.
+     */
+    static void prefetch(byte[] salt, String password) {
+        FutureTask<SecretKey> task = getTask(salt, password);
+        if (!task.isDone()) {
+            PersistenceThread.getHandler().post(task);
+        }
+    }
+
+    /**
+     * Returns the key for the given salt and password, deriving it if no
+     * other caller has.
+     */
+    static SecretKey getKey(byte[] salt, String password) {
+        FutureTask<SecretKey> task = getTask(salt, password);
+        // Runs the derivation here unless it is already running or done elsewhere.
+        task.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static FutureTask<SecretKey> getTask(final byte[] salt, final String password) {
+        // Base64 has no '|', so different (salt, password) pairs can't produce the same id.
+        String id = Base64.encode(salt) + "|" + password;
+        FutureTask<SecretKey> task = sKeys.get(id);
+        if (task == null) {
+            FutureTask<SecretKey> newTask = new FutureTask<SecretKey>(new Callable<SecretKey>() {
+                public SecretKey call() {
+                    return deriveKey(salt, password);
+                }
+            });
+            task = sKeys.putIfAbsent(id, newTask);
+            if (task == null) {
+                task = newTask;
+            }
+        }
+        return task;
+    }
+
+    private static SecretKey deriveKey(byte[] salt, String password) {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEYGEN_ALGORITHM);
+            KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, 1024, 256);
+            SecretKey tmp = factory.generateSecret(keySpec);
+            return new SecretKeySpec(tmp.getEncoded(), "AES");
+        } catch (GeneralSecurityException e) {
+            // This can't happen on a compatible Android device.
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads the APK expansion files announced in an {@link APKExpansionPolicy}.
+ * <p>
+ * Each file is split into fixed-size chunks which are fetched with HTTP Range
+ * requests over a bounded pool of threads. The target file is preallocated to
+ * its final size and every chunk is written straight to its place with
+ * positional {@link FileChannel} writes, so chunks may complete in any order.
+ * <p>
+ * Completed chunks are recorded in a small bitmap file next to the download
+ * (the file name plus {@link #PROGRESS_SUFFIX}). An interrupted download
+ * resumes from that bitmap, and the bitmap is removed once the file is
+ * complete. A chunk is only marked as done after its data has been forced to
+ * disk.
+ * <p>
+ * {@link #download(int, DownloadListener)} blocks, so call it from a worker
+ * thread. Call {@link #shutdown()} when the downloader is no longer needed.
+ */
+public class ExpansionDownloader {
+
+    private static final String TAG = "ExpansionDownloader";
+
+    /** Suffix of the file recording which chunks of a download are complete. */
+    public static final String PROGRESS_SUFFIX = ".chunks";
+
+    /** Default size of a chunk requested with a single Range request. */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /** Default number of chunks downloaded at the same time. */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final int PROGRESS_MAGIC = 0x4c564c44; // "LVLD"
+    private static final int PROGRESS_HEADER_SIZE = 4 + 8 + 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 20 * 1000;
+    private static final int READ_TIMEOUT_MS = 20 * 1000;
+
+    /**
+     * Receives progress updates. Updates are delivered on the download
+     * threads, not on the thread that called
+     * {@link ExpansionDownloader#download(int, DownloadListener)}.
+     */
+    public interface DownloadListener {
+        /**
+         * @param index the index of the expansion file being downloaded
+         * @param bytesDone number of bytes of the file on disk so far,
+         *            including those from an earlier, interrupted download
+         * @param totalBytes the size of the file
+         */
+        void onProgress(int index, long bytesDone, long totalBytes);
+    }
+
+    private final APKExpansionPolicy mPolicy;
+    private final File mDirectory;
+    private final int mChunkSize;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Creates a downloader with the default chunk size and parallelism.
+     *
+     * @param policy policy holding the URLs, names and sizes of the files
+     * @param directory directory the files are saved to, normally
+     *            {@code context.getObbDir()}
+     */
+    public ExpansionDownloader(APKExpansionPolicy policy, File directory) {
+        this(policy, directory, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param policy policy holding the URLs, names and sizes of the files
+     * @param directory directory the files are saved to, normally
+     *            {@code context.getObbDir()}
+     * @param chunkSize size in bytes of a chunk requested with a single Range
+     *            request
+     * @param parallelism maximum number of chunks downloaded at the same time
+     */
+    public ExpansionDownloader(APKExpansionPolicy policy, File directory, int chunkSize,
+            int parallelism) {
+        if (chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("chunkSize and parallelism must be positive");
+        }
+        mPolicy = policy;
+        mDirectory = directory;
+        mChunkSize = chunkSize;
+        mExecutor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Returns the file an expansion file is downloaded to, or null if the
+     * policy does not know its name.
+     *
+     * @param index the index of the file. This value will be either
+     *            {@link APKExpansionPolicy#MAIN_FILE_URL_INDEX} or
+     *            {@link APKExpansionPolicy#PATCH_FILE_URL_INDEX}
+     */
+    public File getFile(int index) {
+        String name = mPolicy.getExpansionFileName(index);
+        return name == null ? null : new File(mDirectory, name);
+    }
+
+    /**
+     * Returns true if the expansion file has been downloaded completely.
+     */
+    public boolean isComplete(int index) {
+        File file = getFile(index);
+        return file != null && file.length() == mPolicy.getExpansionFileSize(index)
+                && !progressFile(file).exists();
+    }
+
+    /**
+     * Downloads an expansion file, resuming an earlier download if there is
+     * one. Returns immediately if the file is already complete.
+     *
+     * @param index the index of the file. This value will be either
+     *            {@link APKExpansionPolicy#MAIN_FILE_URL_INDEX} or
+     *            {@link APKExpansionPolicy#PATCH_FILE_URL_INDEX}
+     * @param listener receives progress updates, may be null
+     * @return the downloaded file
+     * @throws IOException if the policy has no usable URL, name and size for
+     *             the file, the URL has expired, or a chunk fails to download.
+     *             Chunks completed so far are kept for the next attempt.
+     * @throws InterruptedException if the calling thread is interrupted. The
+     *             outstanding chunks are cancelled.
+     */
+    public File download(int index, DownloadListener listener)
+            throws IOException, InterruptedException {
+        String url = mPolicy.getExpansionURL(index);
+        File file = getFile(index);
+        long size = mPolicy.getExpansionFileSize(index);
+        if (url == null || file == null || size < 0) {
+            throw new IOException("No expansion file " + index + " in policy");
+        }
+        if (isComplete(index)) {
+            return file;
+        }
+        long expiry = mPolicy.getExpansionURLExpiry(index);
+        if (expiry != 0 && System.currentTimeMillis() > expiry) {
+            // The URL is signed for a limited time; a license check gets a fresh one.
+            throw new IOException("Expansion URL " + index + " has expired");
+        }
+
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            ChunkBitmap bitmap = ChunkBitmap.open(progressFile(file), size, mChunkSize);
+            try {
+                data.setLength(size);
+                downloadChunks(index, new URL(url), data.getChannel(), bitmap, size, listener);
+            } finally {
+                bitmap.close();
+            }
+        } finally {
+            data.close();
+        }
+        if (!progressFile(file).delete()) {
+            Log.w(TAG, "Unable to delete download progress of " + file);
+        }
+        return file;
+    }
+
+    private void downloadChunks(final int index, final URL url, final FileChannel channel,
+            final ChunkBitmap bitmap, final long size, final DownloadListener listener)
+            throws IOException, InterruptedException {
+        final AtomicLong bytesDone = new AtomicLong(bitmap.getCompletedBytes());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < bitmap.getChunkCount(); i++) {
+            if (bitmap.isComplete(i)) {
+                continue;
+            }
+            final int chunk = i;
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    long start = (long) chunk * mChunkSize;
+                    long length = Math.min(mChunkSize, size - start);
+                    fetchRange(url, channel, start, length, size);
+                    channel.force(false);
+                    bitmap.markComplete(chunk);
+                    long done = bytesDone.addAndGet(length);
+                    if (listener != null) {
+                        listener.onProgress(index, done, size);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.toString());
+        } finally {
+            // Only does something if a chunk failed or we were interrupted.
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Fetches the bytes [start, start + length) of the resource and writes
+     * them to the same position of the channel.
+     */
+    private static void fetchRange(URL url, FileChannel channel, long start, long length,
+            long size) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            boolean wholeFile = start == 0 && length == size;
+            if (!wholeFile) {
+                conn.setRequestProperty("Range",
+                        "bytes=" + start + "-" + (start + length - 1));
+            }
+            int status = conn.getResponseCode();
+            if (status != HttpURLConnection.HTTP_PARTIAL
+                    && !(wholeFile && status == HttpURLConnection.HTTP_OK)) {
+                throw new IOException("Unexpected HTTP status " + status + " for range "
+                        + start + "+" + length);
+            }
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                checkContentRange(conn.getHeaderField("Content-Range"), start, length, size);
+            }
+
+            InputStream in = conn.getInputStream();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                long position = start;
+                long end = start + length;
+                while (position < end) {
+                    if (Thread.interrupted()) {
+                        throw new IOException("Download cancelled");
+                    }
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                    if (read < 0) {
+                        throw new IOException("Range " + start + "+" + length
+                                + " truncated at " + position);
+                    }
+                    wrapped.clear().limit(read);
+                    while (wrapped.hasRemaining()) {
+                        position += channel.write(wrapped, position);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Checks that the Content-Range of a partial response, "bytes
+     * first-last/complete", is the range that was requested. A server may
+     * answer with a different range than asked for, and writing its bytes at
+     * the requested position would corrupt the file.
+     */
+    private static void checkContentRange(String contentRange, long start, long length,
+            long size) throws IOException {
+        if (contentRange != null) {
+            String range = contentRange.trim();
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/', dash + 1);
+            if (range.regionMatches(true, 0, "bytes ", 0, 6) && dash > 6 && slash > 0) {
+                try {
+                    long first = Long.parseLong(range.substring(6, dash).trim());
+                    long last = Long.parseLong(range.substring(dash + 1, slash).trim());
+                    String complete = range.substring(slash + 1).trim();
+                    if (first == start && last == start + length - 1
+                            && (complete.equals("*") || Long.parseLong(complete) == size)) {
+                        return;
+                    }
+                } catch (NumberFormatException e) {
+                    // Reported below.
+                }
+            }
+        }
+        throw new IOException("Content-Range " + contentRange + " does not match range "
+                + start + "+" + length);
+    }
+
+    /**
+     * Stops the download threads. Downloads in progress fail.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static File progressFile(File file) {
+        return new File(file.getPath() + PROGRESS_SUFFIX);
+    }
+
+    /**
+     * The persisted record of completed chunks: a header holding the file and
+     * chunk size, followed by one bit per chunk. A bitmap written for a
+     * different file or chunk size is discarded and the download starts over.
+     */
+    static final class ChunkBitmap {
+        private final RandomAccessFile mFile;
+        private final byte[] mBits;
+        private final long mSize;
+        private final int mChunkSize;
+        private final int mChunkCount;
+
+        private ChunkBitmap(RandomAccessFile file, byte[] bits, long size, int chunkSize,
+                int chunkCount) {
+            mFile = file;
+            mBits = bits;
+            mSize = size;
+            mChunkSize = chunkSize;
+            mChunkCount = chunkCount;
+        }
+
+        static ChunkBitmap open(File path, long size, int chunkSize) throws IOException {
+            long chunks = (size + chunkSize - 1) / chunkSize;
+            if (chunks > Integer.MAX_VALUE - 7) {
+                throw new IOException("Too many chunks for file of size " + size);
+            }
+            int chunkCount = (int) chunks;
+            byte[] bits = new byte[(chunkCount + 7) / 8];
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                boolean valid = file.length() == PROGRESS_HEADER_SIZE + bits.length
+                        && file.readInt() == PROGRESS_MAGIC
+                        && file.readLong() == size
+                        && file.readInt() == chunkSize;
+                if (valid) {
+                    file.readFully(bits);
+                } else {
+                    file.setLength(0);
+                    file.seek(0);
+                    file.writeInt(PROGRESS_MAGIC);
+                    file.writeLong(size);
+                    file.writeInt(chunkSize);
+                    file.write(bits);
+                    file.getFD().sync();
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            return new ChunkBitmap(file, bits, size, chunkSize, chunkCount);
+        }
+
+        int getChunkCount() {
+            return mChunkCount;
+        }
+
+        synchronized boolean isComplete(int chunk) {
+            return (mBits[chunk >> 3] & (1 << (chunk & 7))) != 0;
+        }
+
+        synchronized long getCompletedBytes() {
+            long bytes = 0;
+            for (int i = 0; i < mChunkCount; i++) {
+                if (isComplete(i)) {
+                    bytes += Math.min(mChunkSize, mSize - (long) i * mChunkSize);
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * Records a chunk as complete. Only the byte holding its bit is
+         * rewritten.
+         */
+        synchronized void markComplete(int chunk) throws IOException {
+            int offset = chunk >> 3;
+            mBits[offset] |= (byte) (1 << (chunk & 7));
+            mFile.seek(PROGRESS_HEADER_SIZE + offset);
+            mFile.write(mBits[offset]);
+        }
+
+        void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Remembers which expansion files have already been validated, so that an
+ * unchanged file does not have to be checksummed again on every launch.
+ * <p>
+ * An entry records the size, last-modified time and, on Lollipop and later,
+ * inode number of a file at the time it was validated. The entry only counts
+ * while all of them still match, so replacing or modifying the file
+ * invalidates it without any further bookkeeping. Entries are stored in
+ * obfuscated preferences, like the policy data.
+ * <p>
+ * The methods touch the file system and commit preferences, so call them from
+ * a worker thread.
+ */
+public class ExpansionValidationCache {
+
+    private static final String TAG = "ExpansionValidationCache";
+    private static final String PREFS_FILE =
+            "com.google.android.vending.licensing.ExpansionValidationCache";
+
+    private final PreferenceObfuscator mPreferences;
+
+    /**
+     * @param context The context for the current application
+     * @param obfuscator An obfuscator to be used with preferences.
+     */
+    public ExpansionValidationCache(Context context, Obfuscator obfuscator) {
+        SharedPreferences sp = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+        mPreferences = new PreferenceObfuscator(sp, obfuscator);
+    }
+
+    /**
+     * Returns true if the file was marked valid with
+     * {@link #markValid(File)} and has not changed since.
+     */
+    public synchronized boolean isValid(File file) {
+        String recorded = mPreferences.getString(file.getAbsolutePath(), null);
+        return recorded != null && recorded.equals(fingerprint(file));
+    }
+
+    /**
+     * Records that the file, in its current state, has been validated.
+     */
+    public synchronized void markValid(File file) {
+        String fingerprint = fingerprint(file);
+        if (fingerprint == null) {
+            Log.w(TAG, "Not caching validation of missing file " + file);
+            return;
+        }
+        mPreferences.putString(file.getAbsolutePath(), fingerprint);
+        mPreferences.commit();
+    }
+
+    /**
+     * Forgets any validation recorded for the file.
+     */
+    public synchronized void invalidate(File file) {
+        mPreferences.remove(file.getAbsolutePath());
+        mPreferences.commit();
+    }
+
+    /**
+     * Returns a string identifying the current contents of the file, or null
+     * if it does not exist.
+     */
+    private static String fingerprint(File file) {
+        // File.length() and lastModified() return 0 for a missing file, which could
+        // collide with an empty one.
+        if (!file.isFile()) {
+            return null;
+        }
+        return file.length() + ":" + file.lastModified() + ":" + inode(file);
+    }
+
+    /**
+     * Returns the inode number of the file, or 0 if it is not available. The
+     * inode catches a file replaced by another one of the same size and time.
+     */
+    private static long inode(File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return 0;
+        }
+        try {
+            return Os.stat(file.getPath()).st_ino;
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+}
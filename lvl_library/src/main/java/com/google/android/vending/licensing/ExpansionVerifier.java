@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Verifies the integrity of downloaded APK expansion files.
+ * <p>
+ * The file named by {@link APKExpansionPolicy#getExpansionFileName(int)} is
+ * first checked against {@link APKExpansionPolicy#getExpansionFileSize(int)}.
+ * It is then split into fixed-size segments which are memory-mapped and
+ * checksummed on a pool of threads, so large files are hashed on several cores
+ * without copying them through an {@code InputStream}.
+ * <p>
+ * Two checksums are supported:
+ * <ul>
+ * <li>{@link #CRC32}: the standard CRC-32 of the whole file, as computed by
+ * {@link java.util.zip.CRC32} or zip tools. The per-segment values are
+ * combined, so the result does not depend on the segment size.
+ * <li>{@link #SHA256_SEGMENTS}: the SHA-256 of the concatenated SHA-256
+ * digests of each segment. This depends on the segment size, so expected
+ * values must be computed with the same segment size; see
+ * {@link #DEFAULT_SEGMENT_SIZE}.
+ * </ul>
+ * Results are delivered to a {@link VerificationListener} on one of the
+ * verifier's threads, except for a missing or wrongly sized file, which is
+ * reported before {@link #verify} returns. Call {@link #shutdown()} when the
+ * verifier is no longer needed.
+ */
+public class ExpansionVerifier {
+
+    private static final String TAG = "ExpansionVerifier";
+
+    /** CRC-32 of the whole file, as a 4 byte big-endian value. */
+    public static final int CRC32 = 0;
+    /** SHA-256 over the SHA-256 digests of each segment. */
+    public static final int SHA256_SEGMENTS = 1;
+
+    /** The file does not exist. */
+    public static final int ERROR_FILE_MISSING = 1;
+    /** The file does not have the size given by the policy. */
+    public static final int ERROR_SIZE_MISMATCH = 2;
+    /** The checksum does not match the expected one. */
+    public static final int ERROR_CHECKSUM_MISMATCH = 3;
+    /** The file could not be read, or the policy does not know the file. */
+    public static final int ERROR_IO = 4;
+
+    /** Default size of a segment checksummed as one unit of work. */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives the progress and outcome of a verification.
+     */
+    public interface VerificationListener {
+        /**
+         * @param index the index of the expansion file being verified
+         * @param bytesDone number of bytes checksummed so far
+         * @param totalBytes the size of the file
+         */
+        void onProgress(int index, long bytesDone, long totalBytes);
+
+        /**
+         * Called once the file has been checksummed and, if an expected
+         * checksum was given, matched it.
+         *
+         * @param index the index of the expansion file
+         * @param checksum the computed checksum
+         */
+        void onVerified(int index, byte[] checksum);
+
+        /**
+         * @param index the index of the expansion file
+         * @param error one of the ERROR_* constants
+         */
+        void onFailed(int index, int error);
+    }
+
+    private final APKExpansionPolicy mPolicy;
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Creates a verifier with the default segment size, using one thread per
+     * available processor.
+     *
+     * @param policy policy holding the names and sizes of the files
+     * @param directory directory holding the files, normally
+     *            {@code context.getObbDir()}
+     */
+    public ExpansionVerifier(APKExpansionPolicy policy, File directory) {
+        this(policy, directory, DEFAULT_SEGMENT_SIZE,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param policy policy holding the names and sizes of the files
+     * @param directory directory holding the files, normally
+     *            {@code context.getObbDir()}
+     * @param segmentSize size in bytes of a segment checksummed as one unit
+     * @param parallelism maximum number of segments checksummed at the same
+     *            time
+     */
+    public ExpansionVerifier(APKExpansionPolicy policy, File directory, int segmentSize,
+            int parallelism) {
+        if (segmentSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("segmentSize and parallelism must be positive");
+        }
+        mPolicy = policy;
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mExecutor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Starts verifying an expansion file and returns immediately.
+     *
+     * @param index the index of the file. This value will be either
+     *            {@link APKExpansionPolicy#MAIN_FILE_URL_INDEX} or
+     *            {@link APKExpansionPolicy#PATCH_FILE_URL_INDEX}
+     * @param algorithm {@link #CRC32} or {@link #SHA256_SEGMENTS}
+     * @param expectedChecksum the checksum the file must have, or null to only
+     *            check the size and report the computed checksum
+     * @param listener receives progress and the result
+     * @throws java.util.concurrent.RejectedExecutionException if {@link #shutdown()}
+     *             has been called
+     */
+    public void verify(int index, int algorithm, byte[] expectedChecksum,
+            VerificationListener listener) {
+        if (algorithm != CRC32 && algorithm != SHA256_SEGMENTS) {
+            throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+        }
+        String name = mPolicy.getExpansionFileName(index);
+        long size = mPolicy.getExpansionFileSize(index);
+        if (name == null || size < 0) {
+            listener.onFailed(index, ERROR_IO);
+            return;
+        }
+        File file = new File(mDirectory, name);
+        if (!file.exists()) {
+            listener.onFailed(index, ERROR_FILE_MISSING);
+            return;
+        }
+        if (file.length() != size) {
+            listener.onFailed(index, ERROR_SIZE_MISMATCH);
+            return;
+        }
+
+        RandomAccessFile data;
+        try {
+            data = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open " + file, e);
+            listener.onFailed(index, ERROR_IO);
+            return;
+        }
+        new Verification(index, algorithm, expectedChecksum, listener, data, size).start();
+    }
+
+    /**
+     * Stops the verifier threads. Verifications in progress are abandoned
+     * without a result.
+     */
+    public void shutdown() {
+        for (Runnable task : mExecutor.shutdownNow()) {
+            if (task instanceof Verification.SegmentTask) {
+                // Never going to run; let its verification close the file.
+                ((Verification.SegmentTask) task).abandon();
+            }
+        }
+    }
+
+    /**
+     * The state of verifying one file. Each segment is a separate task; the
+     * task that finishes last combines the segment checksums and reports the
+     * result, so no thread blocks waiting for the others.
+     */
+    private class Verification {
+        private final int mIndex;
+        private final int mAlgorithm;
+        private final byte[] mExpected;
+        private final VerificationListener mListener;
+        private final RandomAccessFile mFile;
+        private final long mSize;
+        private final int mSegmentCount;
+        private final long[] mCrcs;
+        private final byte[][] mDigests;
+        // Set once a segment's checksum is in; a segment can also end with an Error.
+        private final boolean[] mDone;
+        private final AtomicInteger mRemaining;
+        private final AtomicLong mBytesDone = new AtomicLong();
+        private final AtomicBoolean mFailed = new AtomicBoolean();
+
+        Verification(int index, int algorithm, byte[] expected, VerificationListener listener,
+                RandomAccessFile file, long size) {
+            mIndex = index;
+            mAlgorithm = algorithm;
+            mExpected = expected;
+            mListener = listener;
+            mFile = file;
+            mSize = size;
+            // An empty file still has one (empty) segment.
+            mSegmentCount = (int) Math.max(1, (size + mSegmentSize - 1) / mSegmentSize);
+            mCrcs = new long[mSegmentCount];
+            mDigests = new byte[mSegmentCount][];
+            mDone = new boolean[mSegmentCount];
+            mRemaining = new AtomicInteger(mSegmentCount);
+        }
+
+        /**
+         * Checksums one segment. A task that the executor drops on
+         * {@link #shutdown()} is abandoned instead.
+         */
+        class SegmentTask implements Runnable {
+            private final int mSegment;
+
+            SegmentTask(int segment) {
+                mSegment = segment;
+            }
+
+            public void run() {
+                processSegment(mSegment);
+            }
+
+            void abandon() {
+                Verification.this.abandon(1);
+            }
+        }
+
+        void start() {
+            int submitted = 0;
+            try {
+                for (; submitted < mSegmentCount; submitted++) {
+                    mExecutor.execute(new SegmentTask(submitted));
+                }
+            } finally {
+                if (submitted < mSegmentCount) {
+                    // Rejected after shutdown(): these segments will never run.
+                    abandon(mSegmentCount - submitted);
+                }
+            }
+        }
+
+        /**
+         * Gives up on segments that will never run, without reporting a
+         * result. The file is closed once no segment is left.
+         */
+        private void abandon(int segments) {
+            mFailed.set(true);
+            if (mRemaining.addAndGet(-segments) == 0) {
+                finish();
+            }
+        }
+
+        private void processSegment(int segment) {
+            try {
+                if (!mFailed.get()) {
+                    checksumSegment(segment);
+                }
+            } finally {
+                // The decrement publishes this segment's result to the last task.
+                if (mRemaining.decrementAndGet() == 0) {
+                    finish();
+                }
+            }
+        }
+
+        private void checksumSegment(int segment) {
+            long start = (long) segment * mSegmentSize;
+            int length = (int) Math.min(mSegmentSize, mSize - start);
+            try {
+                MappedByteBuffer buffer = mFile.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, start, length);
+                if (mAlgorithm == CRC32) {
+                    mCrcs[segment] = crc32(buffer);
+                } else {
+                    mDigests[segment] = sha256(buffer);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read segment " + segment, e);
+                fail();
+                return;
+            } catch (RuntimeException e) {
+                // For example, the file was truncated while it was mapped.
+                Log.w(TAG, "Unable to read segment " + segment, e);
+                fail();
+                return;
+            }
+            mDone[segment] = true;
+            mListener.onProgress(mIndex, mBytesDone.addAndGet(length), mSize);
+        }
+
+        private void finish() {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // Nothing was written, so there is nothing to lose.
+            }
+            if (mFailed.get()) {
+                return;
+            }
+            for (int i = 0; i < mSegmentCount; i++) {
+                if (!mDone[i]) {
+                    Log.w(TAG, "Segment " + i + " was not checksummed");
+                    fail();
+                    return;
+                }
+            }
+            byte[] checksum = mAlgorithm == CRC32 ? combineCrcs() : combineDigests();
+            if (mExpected != null && !Arrays.equals(mExpected, checksum)) {
+                mListener.onFailed(mIndex, ERROR_CHECKSUM_MISMATCH);
+            } else {
+                mListener.onVerified(mIndex, checksum);
+            }
+        }
+
+        private void fail() {
+            if (mFailed.compareAndSet(false, true)) {
+                mListener.onFailed(mIndex, ERROR_IO);
+            }
+        }
+
+        private byte[] combineCrcs() {
+            long crc = mCrcs[0];
+            for (int i = 1; i < mSegmentCount; i++) {
+                long length = Math.min(mSegmentSize, mSize - (long) i * mSegmentSize);
+                crc = crc32Combine(crc, mCrcs[i], length);
+            }
+            return new byte[] {
+                    (byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc
+            };
+        }
+
+        private byte[] combineDigests() {
+            MessageDigest digest = newSha256();
+            for (byte[] segmentDigest : mDigests) {
+                digest.update(segmentDigest);
+            }
+            return digest.digest();
+        }
+    }
+
+    private static long crc32(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            crc.update(buffer);
+        } else {
+            // Older releases can only checksum arrays.
+            byte[] copy = new byte[Math.min(COPY_BUFFER_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(copy.length, buffer.remaining());
+                buffer.get(copy, 0, length);
+                crc.update(copy, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] sha256(ByteBuffer buffer) {
+        MessageDigest digest = newSha256();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // This can't happen; SHA-256 is available on every platform.
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    /**
+     * Returns the CRC-32 of two concatenated blocks, given the CRC-32 of each
+     * and the length of the second. This is the algorithm of zlib's
+     * {@code crc32_combine()}: the first CRC is advanced over length2 zero
+     * bytes by repeated squaring of the CRC shift operator in GF(2).
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // Operator for one zero bit.
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // Operators for two and four zero bits.
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // Apply length2 zero bytes, one power of two at a time.
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
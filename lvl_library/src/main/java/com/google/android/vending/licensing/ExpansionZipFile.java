@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads entries of APK expansion files that are ZIP archives with stored
+ * (uncompressed) entries, without copying them.
+ * <p>
+ * Each archive is memory-mapped and its central directory is parsed once,
+ * into a sorted index of entry names with the position and length of their
+ * data. {@link #getBuffer(String)} then returns a read-only
+ * {@link ByteBuffer} slice of the mapping, so reading an asset costs no
+ * system call and no copy.
+ * <p>
+ * Several archives can be opened together; an entry in a later archive
+ * replaces an entry of the same name in an earlier one. This is how a patch
+ * file overlays the main file, see {@link #open(APKExpansionPolicy, File)}.
+ * <p>
+ * Archives larger than 2 GB cannot be mapped in one piece; their entries are
+ * mapped one at a time when requested. ZIP64 archives are not supported.
+ */
+public class ExpansionZipFile {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int METHOD_STORED = 0;
+    private static final long ZIP64_MARKER = 0xffffffffL;
+
+    private final Archive[] mArchives;
+
+    // The index, sorted by name. Entry i is mLengths[i] bytes at mOffsets[i] of
+    // archive mArchiveIndexes[i]; a negative length marks a compressed entry.
+    private final String[] mNames;
+    private final byte[] mArchiveIndexes;
+    private final long[] mOffsets;
+    private final long[] mLengths;
+
+    /**
+     * Opens the main expansion file and, if there is one, the patch file
+     * overlaying it.
+     *
+     * @param policy policy holding the names of the files
+     * @param directory directory holding the files, normally
+     *            {@code context.getObbDir()}
+     * @throws IOException if there is no main file or an archive cannot be
+     *             read
+     */
+    public static ExpansionZipFile open(APKExpansionPolicy policy, File directory)
+            throws IOException {
+        String main = policy.getExpansionFileName(APKExpansionPolicy.MAIN_FILE_URL_INDEX);
+        String patch = policy.getExpansionFileName(APKExpansionPolicy.PATCH_FILE_URL_INDEX);
+        if (main == null) {
+            throw new IOException("No main expansion file in policy");
+        }
+        File patchFile = patch == null ? null : new File(directory, patch);
+        if (patchFile != null && patchFile.exists()) {
+            return new ExpansionZipFile(new File[] {
+                    new File(directory, main), patchFile
+            });
+        }
+        return new ExpansionZipFile(new File[] {
+                new File(directory, main)
+        });
+    }
+
+    /**
+     * @param files the archives to open. Entries of later archives replace
+     *            entries of the same name in earlier ones.
+     * @throws IOException if an archive cannot be read or is not a supported
+     *             ZIP file
+     */
+    public ExpansionZipFile(File[] files) throws IOException {
+        if (files.length > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many archives");
+        }
+        mArchives = new Archive[files.length];
+        Map<String, long[]> entries = new TreeMap<String, long[]>();
+        try {
+            for (int i = 0; i < files.length; i++) {
+                mArchives[i] = new Archive(files[i]);
+                mArchives[i].readEntries(i, entries);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        int count = entries.size();
+        mNames = entries.keySet().toArray(new String[count]);
+        mArchiveIndexes = new byte[count];
+        mOffsets = new long[count];
+        mLengths = new long[count];
+        int i = 0;
+        for (long[] entry : entries.values()) {
+            mArchiveIndexes[i] = (byte) entry[0];
+            mOffsets[i] = entry[1];
+            mLengths[i] = entry[2];
+            i++;
+        }
+    }
+
+    /**
+     * Returns the number of entries, counting overlaid entries once.
+     */
+    public int size() {
+        return mNames.length;
+    }
+
+    /**
+     * Returns the names of all entries, in sorted order.
+     */
+    public String[] getEntryNames() {
+        return mNames.clone();
+    }
+
+    public boolean contains(String name) {
+        return Arrays.binarySearch(mNames, name) >= 0;
+    }
+
+    /**
+     * Returns the uncompressed length of an entry, or -1 if there is no such
+     * entry.
+     */
+    public long getLength(String name) {
+        int i = Arrays.binarySearch(mNames, name);
+        return i < 0 ? -1 : Math.abs(mLengths[i]);
+    }
+
+    /**
+     * Returns the data of a stored entry as a read-only buffer sharing memory
+     * with the mapped archive. The buffer stays valid after {@link #close()}.
+     *
+     * @param name the entry name, such as "assets/level1.dat"
+     * @return the entry data, or null if there is no such entry
+     * @throws IOException if the entry is compressed, or could not be mapped
+     */
+    public ByteBuffer getBuffer(String name) throws IOException {
+        int i = Arrays.binarySearch(mNames, name);
+        if (i < 0) {
+            return null;
+        }
+        if (mLengths[i] < 0) {
+            throw new IOException("Entry " + name + " is compressed");
+        }
+        if (mLengths[i] > Integer.MAX_VALUE) {
+            throw new IOException("Entry " + name + " is too large to map");
+        }
+        return mArchives[mArchiveIndexes[i]].slice(mOffsets[i], (int) mLengths[i]);
+    }
+
+    /**
+     * Closes the archive files. Buffers that have been handed out remain
+     * valid until they are garbage collected.
+     */
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Archive archive : mArchives) {
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * One mapped ZIP file.
+     */
+    private static final class Archive {
+        private final File mFile;
+        private final RandomAccessFile mRandomAccessFile;
+        private final FileChannel mChannel;
+        private final long mSize;
+        /** The whole file, or null if it is too large to map in one piece. */
+        private final ByteBuffer mMapping;
+
+        Archive(File file) throws IOException {
+            mFile = file;
+            mRandomAccessFile = new RandomAccessFile(file, "r");
+            mChannel = mRandomAccessFile.getChannel();
+            mSize = mChannel.size();
+            mMapping = mSize <= Integer.MAX_VALUE
+                    ? mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mSize)
+                    : null;
+        }
+
+        /**
+         * Adds this archive's entries to the index, as {archive, data offset,
+         * length} with a negative length for compressed entries.
+         */
+        void readEntries(int archiveIndex, Map<String, long[]> entries) throws IOException {
+            ByteBuffer eocd = findEndOfCentralDirectory();
+            int count = eocd.getShort(10) & 0xffff;
+            long directorySize = eocd.getInt(12) & ZIP64_MARKER;
+            long directoryOffset = eocd.getInt(16) & ZIP64_MARKER;
+            if (count == 0xffff || directorySize == ZIP64_MARKER
+                    || directoryOffset == ZIP64_MARKER) {
+                throw new IOException(mFile + ": ZIP64 archives are not supported");
+            }
+            if (directoryOffset + directorySize > mSize) {
+                throw new IOException(mFile + ": central directory out of range");
+            }
+
+            ByteBuffer directory = read(directoryOffset, (int) directorySize);
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                if (position + CENTRAL_HEADER_SIZE > directory.limit()
+                        || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                    throw new IOException(mFile + ": corrupt central directory");
+                }
+                int method = directory.getShort(position + 10) & 0xffff;
+                long compressedSize = directory.getInt(position + 20) & ZIP64_MARKER;
+                long size = directory.getInt(position + 24) & ZIP64_MARKER;
+                int nameLength = directory.getShort(position + 28) & 0xffff;
+                int extraLength = directory.getShort(position + 30) & 0xffff;
+                int commentLength = directory.getShort(position + 32) & 0xffff;
+                long localHeaderOffset = directory.getInt(position + 42) & ZIP64_MARKER;
+                int nameStart = position + CENTRAL_HEADER_SIZE;
+                if (nameStart + nameLength > directory.limit()) {
+                    throw new IOException(mFile + ": corrupt central directory");
+                }
+                byte[] nameBytes = new byte[nameLength];
+                for (int j = 0; j < nameLength; j++) {
+                    nameBytes[j] = directory.get(nameStart + j);
+                }
+                String name = new String(nameBytes, UTF8);
+                position = nameStart + nameLength + extraLength + commentLength;
+
+                if (name.endsWith("/")) {
+                    // Directories have no data.
+                    continue;
+                }
+                long dataOffset = getDataOffset(name, localHeaderOffset);
+                if (dataOffset + compressedSize > mSize) {
+                    throw new IOException(mFile + ": entry " + name + " out of range");
+                }
+                entries.put(name, new long[] {
+                        archiveIndex, dataOffset, method == METHOD_STORED ? size : -size
+                });
+            }
+        }
+
+        private ByteBuffer findEndOfCentralDirectory() throws IOException {
+            if (mSize < EOCD_SIZE) {
+                throw new IOException(mFile + ": not a ZIP file");
+            }
+            // The record is at the very end, followed only by the archive comment.
+            int tailLength = (int) Math.min(mSize, EOCD_SIZE + MAX_COMMENT_SIZE);
+            ByteBuffer tail = read(mSize - tailLength, tailLength);
+            for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    ByteBuffer eocd = tail.duplicate();
+                    eocd.position(i);
+                    return eocd.slice().order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            throw new IOException(mFile + ": not a ZIP file");
+        }
+
+        /**
+         * Returns where the data of an entry starts. The local header may have
+         * a different extra field than the central directory, so it has to be
+         * read.
+         */
+        private long getDataOffset(String name, long localHeaderOffset) throws IOException {
+            if (localHeaderOffset + LOCAL_HEADER_SIZE > mSize) {
+                throw new IOException(mFile + ": entry " + name + " out of range");
+            }
+            ByteBuffer header = read(localHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException(mFile + ": corrupt local header for " + name);
+            }
+            int nameLength = header.getShort(26) & 0xffff;
+            int extraLength = header.getShort(28) & 0xffff;
+            return localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        }
+
+        /**
+         * Returns a little-endian buffer holding the given range of the file.
+         */
+        private ByteBuffer read(long offset, int length) throws IOException {
+            if (mMapping != null) {
+                return slice(offset, length).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException(mFile + ": unexpected end of file");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Returns a read-only buffer sharing memory with the given range of
+         * the file.
+         */
+        ByteBuffer slice(long offset, int length) throws IOException {
+            if (mMapping == null) {
+                return mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            ByteBuffer slice = mMapping.duplicate();
+            slice.limit((int) offset + length);
+            slice.position((int) offset);
+            return slice.slice();
+        }
+
+        void close() throws IOException {
+            mRandomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+/**
+ * Storage for the string values kept by {@link PreferenceObfuscator}.
+ * <p>
+ * The methods follow {@link android.content.SharedPreferences}, which
+ * {@link SharedPreferencesStore} adapts: changes are collected in an
+ * {@link Editor} and become visible and durable together on
+ * {@link Editor#commit()}. Unlike SharedPreferences, a commit that fails
+ * is not visible in memory either, so that what a reader sees is what will
+ * still be there after a restart.
+ */
+public interface KeyValueStore {
+
+    /**
+     * Returns the value stored for key, or defValue if there is none.
+     */
+    String getString(String key, String defValue);
+
+    /**
+     * Returns an editor for a set of changes.
+     */
+    Editor edit();
+
+    /**
+     * A set of changes to a {@link KeyValueStore}.
+     */
+    interface Editor {
+
+        /**
+         * Sets a value; a null value removes the key.
+         */
+        Editor putString(String key, String value);
+
+        Editor remove(String key);
+
+        /**
+         * Applies the changes and writes them to storage.
+         *
+         * @return false if the changes could not be written; none of them
+         *         are applied then, and reads keep returning the previous
+         *         values
+         */
+        boolean commit();
+    }
+}
@@ -33,6 +33,7 @@ import android.util.Log;
 import com.android.vending.licensing.ILicenseResultListener;
 import com.android.vending.licensing.ILicensingService;
 import com.google.android.vending.licensing.util.Base64;
+import com.google.android.vending.licensing.util.Base64Codec;
 import com.google.android.vending.licensing.util.Base64DecoderException;
 
 import java.security.KeyFactory;
@@ -109,7 +110,7 @@ public class LicenseChecker implements ServiceConnection {
      */
     private static PublicKey generatePublicKey(String encodedPublicKey) {
         try {
-            byte[] decodedKey = Base64.decode(encodedPublicKey);
+            byte[] decodedKey = Base64Codec.decode(encodedPublicKey);
             KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
 
             return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
@@ -134,15 +135,41 @@ public class LicenseChecker implements ServiceConnection {
      * <p>
      * source string: "com.android.vending.licensing.ILicensingService"
      * <p>
-     * 
+     * If the policy is still loading its cached data in the background (see
+     * {@link BackgroundLoadingPolicy}), the check runs on the checker's background thread
+     * instead of waiting for it, and a check that has not started by the time
+     * {@link #onDestroy()} is called is dropped.
+     *
      * @param callback
      */
-    public synchronized void checkAccess(LicenseCheckerCallback callback) {
+    public void checkAccess(final LicenseCheckerCallback callback) {
+        if (mPolicy instanceof BackgroundLoadingPolicy
+                && !((BackgroundLoadingPolicy) mPolicy).isLoaded()) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    doCheckAccess(callback);
+                }
+            });
+        } else {
+            doCheckAccess(callback);
+        }
+    }
+
+    private synchronized void doCheckAccess(LicenseCheckerCallback callback) {
         // If we have a valid recent LICENSED response, we can skip asking
         // Market.
         if (mPolicy.allowAccess()) {
             Log.i(TAG, "Using cached license response");
             callback.allow(Policy.LICENSED);
+        } else if (mPolicy instanceof CheckLimiter && !((CheckLimiter) mPolicy).tryAcquire()) {
+            // Over budget: the cached response stands rather than asking the server again.
+            Log.i(TAG, "License check rate limited, using cached license response");
+            int response = ((CheckLimiter) mPolicy).getCachedResponse();
+            if (response == Policy.LICENSED) {
+                callback.allow(Policy.LICENSED);
+            } else {
+                callback.dontAllow(response);
+            }
         } else {
             LicenseValidator validator = new LicenseValidator(mPolicy, new NullDeviceLimiter(),
                     callback, generateNonce(), mPackageName, mVersionCode);
@@ -368,6 +395,9 @@ public class LicenseChecker implements ServiceConnection {
     public synchronized void onDestroy() {
         cleanupService();
         mHandler.getLooper().quit();
+        // The caller is going away: drop these without a result.
+        mPendingChecks.clear();
+        mChecksInProgress.clear();
     }
 
     /** Generates a nonce (number used once). */
@@ -16,7 +16,7 @@
 
 package com.google.android.vending.licensing;
 
-import com.google.android.vending.licensing.util.Base64;
+import com.google.android.vending.licensing.util.Base64Codec;
 import com.google.android.vending.licensing.util.Base64DecoderException;
 
 import android.text.TextUtils;
@@ -105,7 +105,7 @@ class LicenseValidator {
                 sig.initVerify(publicKey);
                 sig.update(signedData.getBytes());
 
-                if (!sig.verify(Base64.decode(signature))) {
+                if (!sig.verify(Base64Codec.decode(signature))) {
                     Log.e(TAG, "Signature verification failed.");
                     handleInvalidResponse();
                     return;
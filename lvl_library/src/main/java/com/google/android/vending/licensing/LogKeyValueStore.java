@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link KeyValueStore} that appends each commit to a log file.
+ * <p>
+ * SharedPreferences rewrite their whole XML file on every commit. Here a
+ * commit costs one sequential append of the changed entries, followed by an
+ * fsync. All values are held in memory, and the file is read once, when the
+ * store is opened. Once the log has grown to several times the size of the
+ * live data, it is compacted on the {@link PersistenceThread}: a snapshot is
+ * written to a new file, which then replaces the log.
+ * <p>
+ * Each commit is one frame carrying a length and a CRC32, so a commit that
+ * was cut short by a crash is dropped as a whole when the log is next read.
+ * <p>
+ * The file must only be used by one process, and within the process through
+ * the single instance returned by {@link #open(File)}.
+ */
+public class LogKeyValueStore implements KeyValueStore {
+
+    private static final String TAG = "LogKeyValueStore";
+
+    private static final int MAGIC = 0x4c564b56; // "LVKV"
+    private static final int HEADER_SIZE = 4;
+    private static final int FRAME_OVERHEAD = 8;
+    private static final byte OP_REMOVE = 0;
+    private static final byte OP_PUT = 1;
+
+    /** The log is never compacted below this size. */
+    private static final long MIN_COMPACTION_SIZE = 16 * 1024;
+    /** The log is compacted when it is this many times larger than the live data. */
+    private static final int COMPACTION_RATIO = 4;
+
+    private static final Map<String, LogKeyValueStore> sStores =
+            new HashMap<String, LogKeyValueStore>();
+
+    private final File mFile;
+    private final String mPath;
+    private final Map<String, String> mValues = new HashMap<String, String>();
+    private FileOutputStream mOut;
+    private long mLogSize;
+    private boolean mCompactionPending;
+    private boolean mDirectorySyncPending;
+
+    /**
+     * Returns the store for the given file, opening it if necessary.
+     *
+     * @throws IOException if the file cannot be read or created
+     */
+    public static LogKeyValueStore open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (sStores) {
+            LogKeyValueStore store = sStores.get(path);
+            if (store == null) {
+                store = new LogKeyValueStore(file, path);
+                sStores.put(path, store);
+            }
+            return store;
+        }
+    }
+
+    private LogKeyValueStore(File file, String path) throws IOException {
+        mFile = file;
+        mPath = path;
+        long validLength = load();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (validLength < HEADER_SIZE) {
+                // New or foreign file: start out empty.
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                validLength = HEADER_SIZE;
+            } else if (raf.length() > validLength) {
+                Log.w(TAG, "Dropping incomplete commit at the end of " + file);
+                raf.setLength(validLength);
+            }
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        mLogSize = validLength;
+        mOut = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Reads the log into memory.
+     *
+     * @return the length of the valid part of the log, or 0 if it has no
+     *         valid header
+     */
+    private long load() throws IOException {
+        long fileLength = mFile.length();
+        if (fileLength < HEADER_SIZE) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                Log.w(TAG, "Not a log file, starting over: " + mFile);
+                return 0;
+            }
+            long length = HEADER_SIZE;
+            // Anything after the last complete frame is a torn write.
+            while (fileLength - length >= FRAME_OVERHEAD) {
+                int frameLength = in.readInt();
+                int crc = in.readInt();
+                if (frameLength < 0 || frameLength > fileLength - length - FRAME_OVERHEAD) {
+                    break;
+                }
+                byte[] frame = new byte[frameLength];
+                in.readFully(frame);
+                CRC32 check = new CRC32();
+                check.update(frame, 0, frame.length);
+                if ((int) check.getValue() != crc) {
+                    break;
+                }
+                apply(frame);
+                length += FRAME_OVERHEAD + frameLength;
+            }
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            String key = in.readUTF();
+            if (op == OP_PUT) {
+                mValues.put(key, in.readUTF());
+            } else {
+                mValues.remove(key);
+            }
+        }
+    }
+
+    public synchronized String getString(String key, String defValue) {
+        String value = mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    public KeyValueStore.Editor edit() {
+        return new KeyValueStore.Editor() {
+            // A null value removes the key.
+            private final Map<String, String> mChanges = new LinkedHashMap<String, String>();
+
+            public KeyValueStore.Editor putString(String key, String value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            public KeyValueStore.Editor remove(String key) {
+                return putString(key, null);
+            }
+
+            public boolean commit() {
+                return LogKeyValueStore.this.commit(mChanges);
+            }
+        };
+    }
+
+    private synchronized boolean commit(Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return true;
+        }
+        try {
+            if (mOut == null) {
+                throw new IOException("Store is closed");
+            }
+            byte[] frame = frame(changes);
+            mOut.write(frame);
+            mOut.getFD().sync();
+            if (mDirectorySyncPending) {
+                // The log was just replaced; this commit must not depend on the rename.
+                syncDirectory();
+                mDirectorySyncPending = false;
+            }
+            mLogSize += frame.length;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile, e);
+            if (mOut != null) {
+                try {
+                    // Later commits must not be appended after a partial frame.
+                    mOut.getChannel().truncate(mLogSize);
+                } catch (IOException truncateError) {
+                    // The partial frame, and anything after it, is dropped on the next load.
+                }
+            }
+            return false;
+        }
+        // Only now that the frame is on storage, so a failed commit leaves no trace.
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                mValues.remove(change.getKey());
+            } else {
+                mValues.put(change.getKey(), change.getValue());
+            }
+        }
+        maybeScheduleCompaction();
+        return true;
+    }
+
+    /**
+     * Encodes a set of changes as one frame, including its length and CRC.
+     */
+    private static byte[] frame(Map<String, String> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Placeholder for the length and CRC.
+        out.writeLong(0);
+        out.writeInt(changes.size());
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                out.writeByte(OP_REMOVE);
+                out.writeUTF(change.getKey());
+            } else {
+                out.writeByte(OP_PUT);
+                out.writeUTF(change.getKey());
+                out.writeUTF(change.getValue());
+            }
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - FRAME_OVERHEAD;
+        CRC32 crc = new CRC32();
+        crc.update(frame, FRAME_OVERHEAD, length);
+        writeInt(frame, 0, length);
+        writeInt(frame, 4, (int) crc.getValue());
+        return frame;
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private void maybeScheduleCompaction() {
+        if (mCompactionPending || mLogSize < MIN_COMPACTION_SIZE) {
+            return;
+        }
+        long liveSize = HEADER_SIZE + FRAME_OVERHEAD + 4;
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            // Close enough for ASCII, which is what obfuscated values are.
+            liveSize += 5 + entry.getKey().length() + entry.getValue().length();
+        }
+        if (mLogSize > COMPACTION_RATIO * liveSize) {
+            mCompactionPending = true;
+            PersistenceThread.getHandler().post(new Runnable() {
+                public void run() {
+                    compact();
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the log with a snapshot of the current values. The snapshot is
+     * written and synced without holding the store's lock, so reads and
+     * commits go on meanwhile; if there was a commit, the snapshot is out of
+     * date and compaction is tried again.
+     */
+    void compact() {
+        byte[] frame;
+        long logSize;
+        synchronized (this) {
+            mCompactionPending = false;
+            if (mOut == null) {
+                return;
+            }
+            try {
+                frame = frame(new HashMap<String, String>(mValues));
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to compact " + mFile, e);
+                return;
+            }
+            logSize = mLogSize;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(MAGIC);
+                data.write(frame);
+                data.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            synchronized (this) {
+                if (mOut == null || mLogSize != logSize) {
+                    tmp.delete();
+                    if (mOut != null) {
+                        maybeScheduleCompaction();
+                    }
+                    return;
+                }
+                if (!tmp.renameTo(mFile)) {
+                    throw new IOException("Unable to replace " + mFile);
+                }
+                mOut.close();
+                mOut = new FileOutputStream(mFile, true);
+                mLogSize = HEADER_SIZE + frame.length;
+                // Until the directory is synced, a crash could bring back the old log without
+                // the commits appended to the new one.
+                mDirectorySyncPending = true;
+            }
+            syncDirectory();
+            synchronized (this) {
+                mDirectorySyncPending = false;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact " + mFile, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Makes the rename of a compacted log durable. fsync on a directory is
+     * only available from API 21; on older releases the rename becomes
+     * durable when the file system next commits its journal, typically
+     * within seconds.
+     */
+    private void syncDirectory() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        File directory = mFile.getAbsoluteFile().getParentFile();
+        try {
+            FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Unable to sync " + directory, e);
+        }
+    }
+
+    /**
+     * Closes the file. The next {@link #open(File)} for it reads it again.
+     */
+    public void close() {
+        synchronized (sStores) {
+            sStores.remove(mPath);
+        }
+        synchronized (this) {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    // Everything committed has been synced already.
+                }
+                mOut = null;
+            }
+        }
+    }
+}
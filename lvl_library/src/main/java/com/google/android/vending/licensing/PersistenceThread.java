@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * The background thread on which policies load and write their cached data,
+ * shared by all policies in the process. It is started on first use and
+ * lives as long as the process.
+ */
+final class PersistenceThread {
+
+    private static Handler sHandler;
+
+    /** Defeats instantiation. */
+    private PersistenceThread() {
+    }
+
+    /**
+     * Returns a handler that runs tasks on the persistence thread.
+     */
+    static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread handlerThread = new HandlerThread("LVL persistence",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            handlerThread.start();
+            sHandler = new Handler(handlerThread.getLooper());
+        }
+        return sHandler;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An immutable snapshot of the cached license data of a {@link ServerManagedPolicy} or
+ * {@link APKExpansionPolicy}, and its binary storage format.
+ * <p>
+ * Policies publish a new snapshot for every change, so a reader that holds a snapshot always
+ * sees a consistent set of values. The whole state is serialized into a single versioned
+ * record so that it can be obfuscated and stored as one preference value, instead of one
+ * value per field.
+ */
+final class PolicyState {
+
+    /**
+     * Current version of the binary record. Version 1 had no expansion files.
+     */
+    private static final int VERSION = 2;
+
+    static final ExpansionFile[] NO_EXPANSION_FILES = new ExpansionFile[0];
+
+    /** State of a policy that has never received a response. */
+    static final PolicyState DEFAULT = new PolicyState(Policy.RETRY, 0, 0, 0, 0, 0, null);
+
+    /**
+     * An APK expansion file announced by the licensing server.
+     */
+    static final class ExpansionFile {
+        /** An entry for which nothing is known yet. */
+        static final ExpansionFile EMPTY = new ExpansionFile(null, 0, null, -1);
+
+        final String url;
+        /** Time until which the URL is expected to be valid, or 0 if unknown. */
+        final long urlExpiry;
+        final String fileName;
+        /** Size of the file in bytes, or -1 if unknown. */
+        final long fileSize;
+
+        ExpansionFile(String url, long urlExpiry, String fileName, long fileSize) {
+            this.url = url;
+            this.urlExpiry = urlExpiry;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+        }
+
+        ExpansionFile withUrl(String url, long urlExpiry) {
+            return new ExpansionFile(url, urlExpiry, fileName, fileSize);
+        }
+
+        ExpansionFile withFileName(String fileName) {
+            return new ExpansionFile(url, urlExpiry, fileName, fileSize);
+        }
+
+        ExpansionFile withFileSize(long fileSize) {
+            return new ExpansionFile(url, urlExpiry, fileName, fileSize);
+        }
+    }
+
+    final int lastResponse;
+    /**
+     * When the last response was received. This is not persisted, so a RETRY
+     * response is only honored within the process that received it.
+     */
+    final long lastResponseTime;
+    final long validityTimestamp;
+    final long retryUntil;
+    final long maxRetries;
+    final long retryCount;
+    final String licensingUrl;
+    /**
+     * Expansion files by index, see {@link APKExpansionPolicy#MAIN_FILE_URL_INDEX}. Never null,
+     * and never modified once the state has been created.
+     */
+    final ExpansionFile[] expansionFiles;
+
+    PolicyState(int lastResponse, long lastResponseTime, long validityTimestamp,
+            long retryUntil, long maxRetries, long retryCount, String licensingUrl) {
+        this(lastResponse, lastResponseTime, validityTimestamp, retryUntil, maxRetries,
+                retryCount, licensingUrl, NO_EXPANSION_FILES);
+    }
+
+    PolicyState(int lastResponse, long lastResponseTime, long validityTimestamp,
+            long retryUntil, long maxRetries, long retryCount, String licensingUrl,
+            ExpansionFile[] expansionFiles) {
+        this.lastResponse = lastResponse;
+        this.lastResponseTime = lastResponseTime;
+        this.validityTimestamp = validityTimestamp;
+        this.retryUntil = retryUntil;
+        this.maxRetries = maxRetries;
+        this.retryCount = retryCount;
+        this.licensingUrl = licensingUrl;
+        this.expansionFiles = expansionFiles;
+    }
+
+    /**
+     * Returns the expansion file at the given index, or {@link ExpansionFile#EMPTY} if there
+     * is none.
+     */
+    ExpansionFile getExpansionFile(int index) {
+        return index < expansionFiles.length ? expansionFiles[index] : ExpansionFile.EMPTY;
+    }
+
+    /**
+     * Returns a copy of this state with the expansion file at the given index replaced,
+     * growing the list if necessary.
+     */
+    PolicyState withExpansionFile(int index, ExpansionFile file) {
+        return new PolicyState(lastResponse, lastResponseTime, validityTimestamp, retryUntil,
+                maxRetries, retryCount, licensingUrl,
+                withExpansionFile(expansionFiles, index, file));
+    }
+
+    /**
+     * Returns a copy of the given expansion files with the one at the given index replaced,
+     * growing the list if necessary.
+     */
+    static ExpansionFile[] withExpansionFile(ExpansionFile[] files, int index,
+            ExpansionFile file) {
+        ExpansionFile[] result = new ExpansionFile[Math.max(files.length, index + 1)];
+        System.arraycopy(files, 0, result, 0, files.length);
+        for (int i = files.length; i < result.length; i++) {
+            result[i] = ExpansionFile.EMPTY;
+        }
+        result[index] = file;
+        return result;
+    }
+
+    /**
+     * Serializes this state into a versioned binary record.
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(lastResponse);
+            out.writeLong(validityTimestamp);
+            out.writeLong(retryUntil);
+            out.writeLong(maxRetries);
+            out.writeLong(retryCount);
+            writeNullableUTF(out, licensingUrl);
+            out.writeInt(expansionFiles.length);
+            for (ExpansionFile file : expansionFiles) {
+                writeNullableUTF(out, file.url);
+                out.writeLong(file.urlExpiry);
+                writeNullableUTF(out, file.fileName);
+                out.writeLong(file.fileSize);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen when writing to memory.
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parses a record written by {@link #toByteArray()}.
+     *
+     * @param record the binary record
+     * @throws IllegalArgumentException if the record is truncated or has an unknown version
+     * @return the parsed state
+     */
+    static PolicyState fromByteArray(byte[] record) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("Unknown policy state version " + version);
+            }
+            int lastResponse = in.readInt();
+            long validityTimestamp = in.readLong();
+            long retryUntil = in.readLong();
+            long maxRetries = in.readLong();
+            long retryCount = in.readLong();
+            String licensingUrl = readNullableUTF(in);
+            ExpansionFile[] expansionFiles = NO_EXPANSION_FILES;
+            if (version >= 2) {
+                int count = in.readInt();
+                if (count < 0 || count > in.available()) {
+                    throw new IllegalArgumentException("Invalid expansion file count " + count);
+                }
+                expansionFiles = new ExpansionFile[count];
+                for (int i = 0; i < count; i++) {
+                    String url = readNullableUTF(in);
+                    long urlExpiry = in.readLong();
+                    String fileName = readNullableUTF(in);
+                    long fileSize = in.readLong();
+                    expansionFiles[i] = new ExpansionFile(url, urlExpiry, fileName, fileSize);
+                }
+            }
+            return new PolicyState(lastResponse, 0, validityTimestamp, retryUntil, maxRetries,
+                    retryCount, licensingUrl, expansionFiles);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated policy state", e);
+        }
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads and stores a {@link PolicyState} as a single obfuscated preference.
+ * <p>
+ * Opening the preferences and decrypting the state happens on the
+ * {@link PersistenceThread} as soon as the store is created, so that
+ * constructing a policy on the UI thread is cheap. {@link #load()} waits for
+ * that work to finish, or does it on the calling thread if the persistence
+ * thread has not got to it yet.
+ * <p>
+ * The serialized state is stored with
+ * {@link PreferenceObfuscator#putBytes(String, byte[])}, so with a
+ * {@link ByteObfuscator} it is obfuscated as bytes and Base64-encoded once.
+ * Records stored as Base64 text by earlier versions are still read, and are
+ * rewritten in that form when the state is next stored.
+ * <p>
+ * Earlier versions of the library stored each field as its own obfuscated
+ * preference. Those values are read when no state record exists yet and are
+ * removed the first time the record is written.
+ */
+class PolicyStateStore {
+
+    private static final String TAG = "PolicyStateStore";
+    private static final String PREF_STATE = "state";
+
+    // Keys used by earlier versions of the library, one per field.
+    private static final String PREF_LAST_RESPONSE = "lastResponse";
+    private static final String PREF_VALIDITY_TIMESTAMP = "validityTimestamp";
+    private static final String PREF_RETRY_UNTIL = "retryUntil";
+    private static final String PREF_MAX_RETRIES = "maxRetries";
+    private static final String PREF_RETRY_COUNT = "retryCount";
+    private static final String PREF_LICENSING_URL = "licensingUrl";
+    private static final String[] LEGACY_KEYS = {
+            PREF_LAST_RESPONSE, PREF_VALIDITY_TIMESTAMP, PREF_RETRY_UNTIL, PREF_MAX_RETRIES,
+            PREF_RETRY_COUNT, PREF_LICENSING_URL
+    };
+
+    private final FutureTask<PolicyState> mLoadTask;
+    private PreferenceObfuscator mPreferences;
+    private boolean mLegacyKeysPresent;
+
+    /**
+     * Starts loading the policy state in the background.
+     *
+     * @param context The context for the current application
+     * @param prefsFile name of the SharedPreferences file holding the state
+     * @param obfuscator An obfuscator to be used with preferences.
+     */
+    PolicyStateStore(final Context context, final String prefsFile,
+            final Obfuscator obfuscator) {
+        mLoadTask = new FutureTask<PolicyState>(new Callable<PolicyState>() {
+            public PolicyState call() {
+                SharedPreferences sp =
+                        context.getSharedPreferences(prefsFile, Context.MODE_PRIVATE);
+                synchronized (PolicyStateStore.this) {
+                    mPreferences = new PreferenceObfuscator(sp, obfuscator);
+                    return read();
+                }
+            }
+        });
+        PersistenceThread.getHandler().post(mLoadTask);
+    }
+
+    /**
+     * Returns the stored policy state, migrating from the per-field format if
+     * necessary. Missing or corrupt data yields {@link PolicyState#DEFAULT}.
+     * Blocks until the state has been loaded.
+     */
+    PolicyState load() {
+        // Runs the load here if the persistence thread has not started it yet; does nothing
+        // if it is already running or done.
+        mLoadTask.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return mLoadTask.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns true if {@link #load()} would return without waiting.
+     */
+    boolean isLoaded() {
+        return mLoadTask.isDone();
+    }
+
+    private PolicyState read() {
+        byte[] record = mPreferences.getBytes(PREF_STATE, null);
+        if (record == null) {
+            return loadLegacy();
+        }
+        try {
+            return PolicyState.fromByteArray(record);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unable to parse policy state, using defaults");
+        }
+        return PolicyState.DEFAULT;
+    }
+
+    private PolicyState loadLegacy() {
+        // All fields in one batch; the values are in the order of LEGACY_KEYS.
+        String[] values = mPreferences.getStrings(LEGACY_KEYS, null);
+        String lastResponse = values[0];
+        if (lastResponse == null) {
+            return PolicyState.DEFAULT;
+        }
+        mLegacyKeysPresent = true;
+        return new PolicyState(
+                Integer.parseInt(lastResponse),
+                0,
+                parseLong(values[1]),
+                parseLong(values[2]),
+                parseLong(values[3]),
+                parseLong(values[4]),
+                values[5]);
+    }
+
+    private static long parseLong(String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * Writes the policy state as a single record and commits it to disk.
+     */
+    void store(PolicyState state) {
+        // The preferences are opened as part of loading.
+        load();
+        synchronized (this) {
+            mPreferences.putBytes(PREF_STATE, state.toByteArray());
+            if (mLegacyKeysPresent) {
+                for (String key : LEGACY_KEYS) {
+                    mPreferences.remove(key);
+                }
+                mLegacyKeysPresent = false;
+            }
+            mPreferences.commit();
+        }
+    }
+}
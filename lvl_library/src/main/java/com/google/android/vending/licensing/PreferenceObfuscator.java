@@ -19,16 +19,64 @@ package com.google.android.vending.licensing;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.google.android.vending.licensing.util.Base64Codec;
+import com.google.android.vending.licensing.util.Base64DecoderException;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
- * An wrapper for SharedPreferences that transparently performs data obfuscation.
+ * An wrapper for SharedPreferences, or another {@link KeyValueStore}, that transparently
+ * performs data obfuscation.
+ * <p>
+ * Values that have been read or written are cached in memory together with
+ * their obfuscated form. A read compares the stored obfuscated value against
+ * the cached one and only unobfuscates it if they differ, so repeated reads
+ * of the same key cost a lookup rather than a decryption, and a value changed
+ * behind this object's back, for example through another instance, is still
+ * picked up.
+ * <p>
+ * With a {@link ByteObfuscator}, numbers are stored as a tag byte followed by
+ * their fixed-width big-endian form rather than as decimal text. Numbers
+ * stored as text, for example by {@link #putString(String, String)}, can
+ * still be read with {@link #getLong(String, long)} and
+ * {@link #getInt(String, int)}, and are rewritten in the binary form on the
+ * next {@link #commit()}, as are values written by an older obfuscator.
+ * Binary data written with {@link #putBytes(String, byte[])} is likewise
+ * obfuscated as bytes and encoded only once.
  */
 public class PreferenceObfuscator {
 
     private static final String TAG = "PreferenceObfuscator";
+    private static final String UTF8 = "UTF-8";
+    /** Leads binary numbers; decimal text never starts with it. */
+    private static final byte BINARY_TAG = 0;
 
-    private final SharedPreferences mPreferences;
+    private final KeyValueStore mPreferences;
     private final Obfuscator mObfuscator;
-    private SharedPreferences.Editor mEditor;
+    private KeyValueStore.Editor mEditor;
+    private final Map<String, CachedValue> mCache = new HashMap<String, CachedValue>();
+    /** Keys read in an older format, rewritten in the current one on the next commit. */
+    private final Set<String> mPendingRewrites = new HashSet<String>();
+
+    /**
+     * A value together with the obfuscated form it was read from or written
+     * as. The value is a String, Long or Integer depending on how it was
+     * accessed.
+     */
+    private static class CachedValue {
+        final String obfuscated;
+        final Object value;
+
+        CachedValue(String obfuscated, Object value) {
+            this.obfuscated = obfuscated;
+            this.value = value;
+        }
+    }
 
     /**
      * Constructor.
@@ -37,7 +85,17 @@ public class PreferenceObfuscator {
      * @param o The Obfuscator to use when reading or writing data.
      */
     public PreferenceObfuscator(SharedPreferences sp, Obfuscator o) {
-        mPreferences = sp;
+        this(new SharedPreferencesStore(sp), o);
+    }
+
+    /**
+     * Constructor for storage other than SharedPreferences.
+     *
+     * @param store The store holding the obfuscated data.
+     * @param o The Obfuscator to use when reading or writing data.
+     */
+    public PreferenceObfuscator(KeyValueStore store, Obfuscator o) {
+        mPreferences = store;
         mObfuscator = o;
         mEditor = null;
     }
@@ -48,27 +106,346 @@ public class PreferenceObfuscator {
         }
         String obfuscatedValue = mObfuscator.obfuscate(value, key);
         mEditor.putString(key, obfuscatedValue);
+        cache(key, obfuscatedValue, value);
+    }
+
+    private void cache(String key, String obfuscated, Object value) {
+        mPendingRewrites.remove(key);
+        if (obfuscated == null) {
+            mCache.remove(key);
+        } else {
+            mCache.put(key, new CachedValue(obfuscated, value));
+        }
+    }
+
+    /**
+     * Stores several values, obfuscating them in one batch if the obfuscator
+     * is a {@link BatchObfuscator}.
+     *
+     * @param keys the preference keys
+     * @param values the values, in the same order as the keys
+     */
+    public void putStrings(String[] keys, String[] values) {
+        if (mEditor == null) {
+            mEditor = mPreferences.edit();
+        }
+        String[] obfuscatedValues;
+        if (mObfuscator instanceof BatchObfuscator) {
+            obfuscatedValues = ((BatchObfuscator) mObfuscator).obfuscate(values, keys);
+        } else {
+            obfuscatedValues = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                obfuscatedValues[i] = mObfuscator.obfuscate(values[i], keys[i]);
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            mEditor.putString(keys[i], obfuscatedValues[i]);
+            cache(keys[i], obfuscatedValues[i], values[i]);
+        }
     }
 
     public String getString(String key, String defValue) {
-        String result;
-        String value = mPreferences.getString(key, null);
-        if (value != null) {
-            try {
-                result = mObfuscator.unobfuscate(value, key);
-            } catch (ValidationException e) {
+        return getStrings(new String[] { key }, defValue)[0];
+    }
+
+    /**
+     * Reads several values, unobfuscating them in one batch if the obfuscator
+     * is a {@link BatchObfuscator}.
+     *
+     * @param keys the preference keys
+     * @param defValue the value returned for keys that are not found or whose
+     *            values are corrupt
+     * @return the values, in the same order as the keys
+     */
+    public String[] getStrings(String[] keys, String defValue) {
+        String[] values = new String[keys.length];
+        // The values that are not cached yet; null for the others.
+        String[] pending = new String[keys.length];
+        String[] cached = new String[keys.length];
+        boolean anyPending = false;
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = mPreferences.getString(keys[i], null);
+            CachedValue entry = mCache.get(keys[i]);
+            if (entry != null && entry.obfuscated.equals(values[i])
+                    && entry.value instanceof String) {
+                cached[i] = (String) entry.value;
+            } else if (values[i] != null) {
+                pending[i] = values[i];
+                anyPending = true;
+            }
+        }
+
+        String[] results;
+        if (!anyPending) {
+            results = new String[keys.length];
+        } else if (mObfuscator instanceof BatchObfuscator) {
+            results = ((BatchObfuscator) mObfuscator).unobfuscate(pending, keys);
+        } else {
+            results = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                if (pending[i] == null) {
+                    continue;
+                }
+                try {
+                    results[i] = mObfuscator.unobfuscate(pending[i], keys[i]);
+                } catch (ValidationException e) {
+                    // Reported below.
+                }
+            }
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] == null) {
+                // Preference not found
+                results[i] = defValue;
+            } else if (pending[i] == null) {
+                results[i] = cached[i];
+            } else if (results[i] == null) {
                 // Unable to unobfuscate, data corrupt or tampered
-                Log.w(TAG, "Validation error while reading preference: " + key);
-                result = defValue;
+                Log.w(TAG, "Validation error while reading preference: " + keys[i]);
+                results[i] = defValue;
+            } else {
+                cache(keys[i], values[i], results[i]);
+                if (mObfuscator instanceof AESGCMObfuscator
+                        && !((AESGCMObfuscator) mObfuscator).isCurrentFormat(values[i])) {
+                    // Written by an older obfuscator.
+                    mPendingRewrites.add(keys[i]);
+                }
+            }
+        }
+        return results;
+    }
+
+    public void putLong(String key, long value) {
+        if (mObfuscator instanceof ByteObfuscator) {
+            putBinary(key, ByteBuffer.allocate(9).put(BINARY_TAG).putLong(value).array(),
+                    Long.valueOf(value));
+        } else {
+            putString(key, Long.toString(value));
+        }
+    }
+
+    public long getLong(String key, long defValue) {
+        Number value = getNumber(key, true);
+        return value == null ? defValue : value.longValue();
+    }
+
+    public void putInt(String key, int value) {
+        if (mObfuscator instanceof ByteObfuscator) {
+            putBinary(key, ByteBuffer.allocate(5).put(BINARY_TAG).putInt(value).array(),
+                    Integer.valueOf(value));
+        } else {
+            putString(key, Integer.toString(value));
+        }
+    }
+
+    public int getInt(String key, int defValue) {
+        Number value = getNumber(key, false);
+        return value == null ? defValue : value.intValue();
+    }
+
+    /**
+     * Stores binary data. With a {@link ByteObfuscator} the data is
+     * obfuscated as bytes and Base64-encoded once; otherwise it is stored as
+     * Base64 text, obfuscated like any other string.
+     */
+    public void putBytes(String key, byte[] value) {
+        if (mObfuscator instanceof ByteObfuscator) {
+            byte[] plain = new byte[value.length + 1];
+            plain[0] = BINARY_TAG;
+            System.arraycopy(value, 0, plain, 1, value.length);
+            putBinary(key, plain, value.clone());
+        } else {
+            putString(key, Base64Codec.encode(value));
+        }
+    }
+
+    /**
+     * Reads binary data written with {@link #putBytes(String, byte[])}, or
+     * stored as Base64 text with {@link #putString(String, String)}. Text is
+     * rewritten in the binary form on the next {@link #commit()}.
+     *
+     * @param defValue the value returned if the preference is missing or
+     *            cannot be read
+     */
+    public byte[] getBytes(String key, byte[] defValue) {
+        if (!(mObfuscator instanceof ByteObfuscator)) {
+            String encoded = getString(key, null);
+            if (encoded == null) {
+                return defValue;
+            }
+            try {
+                return Base64Codec.decode(encoded);
+            } catch (Base64DecoderException e) {
+                Log.w(TAG, "Preference is not Base64: " + key);
+                return defValue;
             }
+        }
+
+        String stored = mPreferences.getString(key, null);
+        if (stored == null) {
+            // Preference not found
+            return defValue;
+        }
+        CachedValue entry = mCache.get(key);
+        if (entry != null && entry.obfuscated.equals(stored) && entry.value instanceof byte[]) {
+            return ((byte[]) entry.value).clone();
+        }
+
+        byte[] plain = unobfuscate(key, stored);
+        if (plain == null) {
+            return defValue;
+        }
+        byte[] value;
+        boolean binary = plain.length > 0 && plain[0] == BINARY_TAG;
+        if (binary) {
+            value = new byte[plain.length - 1];
+            System.arraycopy(plain, 1, value, 0, value.length);
         } else {
+            try {
+                value = Base64Codec.decode(new String(plain, UTF8));
+            } catch (Base64DecoderException e) {
+                Log.w(TAG, "Preference is not Base64: " + key);
+                return defValue;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Invalid environment", e);
+            }
+        }
+
+        cache(key, stored, value);
+        if (!binary || (mObfuscator instanceof AESGCMObfuscator
+                && !((AESGCMObfuscator) mObfuscator).isCurrentFormat(stored))) {
+            // Text or written by an older obfuscator.
+            mPendingRewrites.add(key);
+        }
+        return value.clone();
+    }
+
+    private void putBinary(String key, byte[] plain, Object value) {
+        if (mEditor == null) {
+            mEditor = mPreferences.edit();
+        }
+        String obfuscatedValue =
+                Base64Codec.encode(((ByteObfuscator) mObfuscator).obfuscate(plain, utf8(key)));
+        mEditor.putString(key, obfuscatedValue);
+        cache(key, obfuscatedValue, value);
+    }
+
+    /**
+     * Reads a Long or Integer, or returns null if the preference is missing
+     * or cannot be read.
+     */
+    private Number getNumber(String key, boolean isLong) {
+        String stored = mPreferences.getString(key, null);
+        if (stored == null) {
             // Preference not found
-            result = defValue;
+            return null;
+        }
+        CachedValue entry = mCache.get(key);
+        if (entry != null && entry.obfuscated.equals(stored)
+                && entry.value instanceof Number) {
+            return isLong ? Long.valueOf(((Number) entry.value).longValue())
+                    : Integer.valueOf(((Number) entry.value).intValue());
         }
-        return result;
+
+        byte[] plain = unobfuscate(key, stored);
+        if (plain == null) {
+            return null;
+        }
+
+        Number value;
+        boolean binary = plain.length == (isLong ? 9 : 5) && plain[0] == BINARY_TAG;
+        if (binary) {
+            ByteBuffer buffer = ByteBuffer.wrap(plain, 1, plain.length - 1);
+            value = isLong ? Long.valueOf(buffer.getLong()) : Integer.valueOf(buffer.getInt());
+        } else {
+            try {
+                String text = new String(plain, UTF8);
+                value = isLong ? Long.valueOf(text) : Integer.valueOf(text);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Preference is not a number: " + key);
+                return null;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("Invalid environment", e);
+            }
+        }
+
+        cache(key, stored, value);
+        if (mObfuscator instanceof ByteObfuscator && (!binary
+                || (mObfuscator instanceof AESGCMObfuscator
+                        && !((AESGCMObfuscator) mObfuscator).isCurrentFormat(stored)))) {
+            // Text or written by an older obfuscator.
+            mPendingRewrites.add(key);
+        }
+        return value;
+    }
+
+    /**
+     * Unobfuscates a stored value to bytes, or returns null if it cannot be
+     * read.
+     */
+    private byte[] unobfuscate(String key, String stored) {
+        try {
+            if (mObfuscator instanceof ByteObfuscator) {
+                return ((ByteObfuscator) mObfuscator).unobfuscate(Base64Codec.decode(stored),
+                        utf8(key));
+            }
+            return utf8(mObfuscator.unobfuscate(stored, key));
+        } catch (ValidationException e) {
+            // Unable to unobfuscate, data corrupt or tampered
+            Log.w(TAG, "Validation error while reading preference: " + key);
+        } catch (Base64DecoderException e) {
+            Log.w(TAG, "Validation error while reading preference: " + key);
+        }
+        return null;
     }
 
+    private void rewritePending() {
+        String[] keys = mPendingRewrites.toArray(new String[mPendingRewrites.size()]);
+        mPendingRewrites.clear();
+        for (String key : keys) {
+            CachedValue entry = mCache.get(key);
+            if (entry == null || !entry.obfuscated.equals(mPreferences.getString(key, null))) {
+                // Changed since it was read; the new value is not ours to rewrite.
+                continue;
+            }
+            if (entry.value instanceof Long) {
+                putLong(key, ((Long) entry.value).longValue());
+            } else if (entry.value instanceof Integer) {
+                putInt(key, ((Integer) entry.value).intValue());
+            } else if (entry.value instanceof byte[]) {
+                putBytes(key, (byte[]) entry.value);
+            } else {
+                putString(key, (String) entry.value);
+            }
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    public void remove(String key) {
+        if (mEditor == null) {
+            mEditor = mPreferences.edit();
+        }
+        mEditor.remove(key);
+        mCache.remove(key);
+        mPendingRewrites.remove(key);
+    }
+
+    /**
+     * Commits the changes, together with the rewrite of any values that were
+     * read in an older format.
+     */
     public void commit() {
+        if (!mPendingRewrites.isEmpty()) {
+            rewritePending();
+        }
         if (mEditor != null) {
             mEditor.commit();
             mEditor = null;
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A policy that limits how often {@link LicenseChecker} contacts the licensing
+ * service, and otherwise defers to the policy it wraps.
+ * <p>
+ * Checks are paid for from a token bucket holding up to maxChecks tokens,
+ * which refills at maxChecks tokens per window. When the bucket is empty,
+ * {@link LicenseChecker} answers with the last response from the server
+ * instead of asking it again. A NOT_LICENSED response is reported as such,
+ * so the app can still offer the user to buy it; anything else the wrapped
+ * policy does not allow is reported as {@link Policy#RETRY}. This keeps an
+ * app that checks on every resume from running into the server quota.
+ * <p>
+ * The bucket is stored as the time at which it will be full again, in
+ * obfuscated preferences, so that restarting the app does not refill it. If
+ * the clock is set back, or the stored time is corrupt or has been tampered
+ * with, the bucket is treated as empty rather than full. The last response
+ * is stored with it. Like {@link ServerManagedPolicy}, the preferences are
+ * read on the {@link PersistenceThread} and written behind.
+ */
+public class RateLimitedPolicy implements Policy, CheckLimiter, BackgroundLoadingPolicy {
+
+    private static final String PREFS_FILE =
+            "com.google.android.vending.licensing.RateLimitedPolicy";
+    private static final String PREF_FULL_AT = "fullAt";
+    private static final String PREF_LAST_RESPONSE = "lastResponse";
+
+    private final Policy mPolicy;
+    private final long mInterval;
+    private final long mWindow;
+    private final FutureTask<Void> mLoadTask;
+    private final WriteBehindWriter mWriter;
+    private PreferenceObfuscator mPreferences;
+    private long mFullAt;
+    private int mLastResponse;
+
+    /**
+     * @param context The context for the current application
+     * @param obfuscator An obfuscator to be used with preferences.
+     * @param policy the policy making the actual licensing decisions
+     * @param maxChecks the number of checks that may reach the server within
+     *            one window
+     * @param windowMs length of the window in milliseconds
+     */
+    public RateLimitedPolicy(final Context context, final Obfuscator obfuscator, Policy policy,
+            int maxChecks, long windowMs) {
+        if (maxChecks <= 0 || windowMs <= 0) {
+            throw new IllegalArgumentException("maxChecks and windowMs must be positive");
+        }
+        mPolicy = policy;
+        mInterval = Math.max(1, windowMs / maxChecks);
+        mWindow = mInterval * maxChecks;
+        mWriter = new WriteBehindWriter(new WriteBehindWriter.Writer() {
+            public void write() {
+                store();
+            }
+        }, WriteBehindWriter.DEFAULT_DELAY_MS);
+        mLoadTask = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                load(context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE),
+                        obfuscator);
+            }
+        }, null);
+        PersistenceThread.getHandler().post(mLoadTask);
+    }
+
+    private synchronized void load(SharedPreferences sp, Obfuscator obfuscator) {
+        mPreferences = new PreferenceObfuscator(sp, obfuscator);
+        if (sp.contains(PREF_FULL_AT)) {
+            // A value that cannot be read must not hand out a full bucket.
+            mFullAt = mPreferences.getLong(PREF_FULL_AT, System.currentTimeMillis() + mWindow);
+        }
+        mLastResponse = mPreferences.getInt(PREF_LAST_RESPONSE, Policy.RETRY);
+    }
+
+    /**
+     * Waits for the stored bucket to be loaded, loading it on the calling
+     * thread if the persistence thread has not started yet. Must not be
+     * called with the policy's lock held.
+     */
+    private void awaitLoad() {
+        mLoadTask.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    mLoadTask.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void store() {
+        mPreferences.putLong(PREF_FULL_AT, mFullAt);
+        mPreferences.putInt(PREF_LAST_RESPONSE, mLastResponse);
+        mPreferences.commit();
+    }
+
+    /**
+     * Takes a token for a check that is about to go to the server. The new
+     * state of the bucket is written to preferences shortly afterwards on a
+     * background thread.
+     *
+     * @return true if the check may go ahead, false if the budget is used up
+     */
+    public boolean tryAcquire() {
+        awaitLoad();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            // Each token spent pushes the time at which the bucket is full again by one
+            // interval.
+            long fullAt = Math.max(mFullAt, now);
+            if (fullAt - now > mWindow) {
+                // The clock went back; the bucket can't be emptier than empty.
+                fullAt = now + mWindow;
+            }
+            boolean acquired = fullAt + mInterval - now <= mWindow;
+            if (acquired) {
+                fullAt += mInterval;
+            }
+            if (fullAt != mFullAt) {
+                mFullAt = fullAt;
+                mWriter.schedule();
+            }
+            return acquired;
+        }
+    }
+
+    /**
+     * Returns LICENSED if the wrapped policy allows access, NOT_LICENSED if
+     * that was the last response from the server, and RETRY otherwise.
+     */
+    public int getCachedResponse() {
+        if (mPolicy.allowAccess()) {
+            return Policy.LICENSED;
+        }
+        awaitLoad();
+        synchronized (this) {
+            return mLastResponse == Policy.NOT_LICENSED ? Policy.NOT_LICENSED : Policy.RETRY;
+        }
+    }
+
+    /**
+     * Writes any bucket or response data that has not been persisted yet to
+     * preferences, blocking until the write completes.
+     */
+    public void flush() {
+        mWriter.flush();
+    }
+
+    public void processServerResponse(int response, ResponseData rawData) {
+        mPolicy.processServerResponse(response, rawData);
+        awaitLoad();
+        synchronized (this) {
+            if (response != mLastResponse) {
+                mLastResponse = response;
+                mWriter.schedule();
+            }
+        }
+    }
+
+    public boolean allowAccess() {
+        return mPolicy.allowAccess();
+    }
+
+    public String getLicensingUrl() {
+        return mPolicy.getLicensingUrl();
+    }
+
+    public boolean isLoaded() {
+        return mLoadTask.isDone() && (!(mPolicy instanceof BackgroundLoadingPolicy)
+                || ((BackgroundLoadingPolicy) mPolicy).isLoaded());
+    }
+}
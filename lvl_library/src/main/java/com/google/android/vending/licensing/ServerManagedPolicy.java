@@ -16,13 +16,12 @@
 
 package com.google.android.vending.licensing;
 
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.util.Log;
 
 import com.google.android.vending.licensing.util.URIQueryDecoder;
@@ -41,48 +40,85 @@ import com.google.android.vending.licensing.util.URIQueryDecoder;
  * Developers who need more fine grained control over their application's
  * licensing policy should implement a custom Policy.
  */
-public class ServerManagedPolicy implements Policy {
+public class ServerManagedPolicy implements Policy, BackgroundLoadingPolicy {
 
     private static final String TAG = "ServerManagedPolicy";
     private static final String PREFS_FILE = "com.google.android.vending.licensing.ServerManagedPolicy";
-    private static final String PREF_LAST_RESPONSE = "lastResponse";
-    private static final String PREF_VALIDITY_TIMESTAMP = "validityTimestamp";
-    private static final String PREF_RETRY_UNTIL = "retryUntil";
-    private static final String PREF_MAX_RETRIES = "maxRetries";
-    private static final String PREF_RETRY_COUNT = "retryCount";
-    private static final String PREF_LICENSING_URL = "licensingUrl";
-    private static final String DEFAULT_VALIDITY_TIMESTAMP = "0";
-    private static final String DEFAULT_RETRY_UNTIL = "0";
-    private static final String DEFAULT_MAX_RETRIES = "0";
-    private static final String DEFAULT_RETRY_COUNT = "0";
 
     private static final long MILLIS_PER_MINUTE = 60 * 1000;
 
-    private long mValidityTimestamp;
-    private long mRetryUntil;
-    private long mMaxRetries;
-    private long mRetryCount;
-    private long mLastResponseTime = 0;
-    private int mLastResponse;
-    private String mLicensingUrl;
-    private PreferenceObfuscator mPreferences;
+    /**
+     * The current policy data. Each response replaces the whole snapshot, so
+     * readers always see a consistent set of values without locking. Null
+     * until the stored data has been loaded; see {@link #getState()}.
+     */
+    private volatile PolicyState mState;
+    /** The preferences holding the state, or null while it is kept in {@link #mStateFile}. */
+    private volatile PolicyStateStore mStore;
+    private final WriteBehindWriter mWriter;
+    private final Context mContext;
+    private final Obfuscator mObfuscator;
+    private final boolean mMultiProcess;
+    /** The file holding the state instead of preferences, or null. */
+    private final File mStateFile;
+    /**
+     * The data shared with the app's other processes, or null if sharing is
+     * off or the file could not be opened. Set before {@link #mState}.
+     */
+    private volatile SharedPolicyStateFile mSharedFile;
 
     /**
      * @param context The context for the current application
      * @param obfuscator An obfuscator to be used with preferences.
      */
     public ServerManagedPolicy(Context context, Obfuscator obfuscator) {
-        // Import old values
-        SharedPreferences sp = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
-        mPreferences = new PreferenceObfuscator(sp, obfuscator);
-        mLastResponse = Integer.parseInt(
-            mPreferences.getString(PREF_LAST_RESPONSE, Integer.toString(Policy.RETRY)));
-        mValidityTimestamp = Long.parseLong(mPreferences.getString(PREF_VALIDITY_TIMESTAMP,
-                DEFAULT_VALIDITY_TIMESTAMP));
-        mRetryUntil = Long.parseLong(mPreferences.getString(PREF_RETRY_UNTIL, DEFAULT_RETRY_UNTIL));
-        mMaxRetries = Long.parseLong(mPreferences.getString(PREF_MAX_RETRIES, DEFAULT_MAX_RETRIES));
-        mRetryCount = Long.parseLong(mPreferences.getString(PREF_RETRY_COUNT, DEFAULT_RETRY_COUNT));
-        mLicensingUrl = mPreferences.getString(PREF_LICENSING_URL, null);
+        this(context, obfuscator, false);
+    }
+
+    /**
+     * @param context The context for the current application
+     * @param obfuscator An obfuscator to be used with preferences.
+     * @param multiProcess true if several processes of the app use this
+     *            policy. A response received by any of them is then shared
+     *            with the others through a memory-mapped file, so that only
+     *            one process has to contact the licensing service.
+     */
+    public ServerManagedPolicy(Context context, Obfuscator obfuscator, boolean multiProcess) {
+        this(context, obfuscator, multiProcess, null);
+    }
+
+    /**
+     * Keeps the policy data in a memory-mapped file with a fixed layout
+     * instead of in preferences. Loading it needs no XML parsing, reading it
+     * is a memory access, and each response is written to the mapping at
+     * once and flushed to storage on a background thread. Any data in the
+     * preferences is imported the first time the file is used. The file may
+     * be shared by several processes of the app, like the file used with the
+     * multiProcess option.
+     *
+     * @param context The context for the current application
+     * @param obfuscator An obfuscator to be used with the file.
+     * @param stateFile the file, for example in {@link Context#getFilesDir()}
+     */
+    public ServerManagedPolicy(Context context, Obfuscator obfuscator, File stateFile) {
+        this(context, obfuscator, false, stateFile);
+    }
+
+    private ServerManagedPolicy(Context context, Obfuscator obfuscator, boolean multiProcess,
+            File stateFile) {
+        mContext = context;
+        mObfuscator = obfuscator;
+        mMultiProcess = multiProcess;
+        mStateFile = stateFile;
+        if (stateFile == null) {
+            // Old values are imported in the background; see getState().
+            mStore = new PolicyStateStore(context, PREFS_FILE, obfuscator);
+        }
+        mWriter = new WriteBehindWriter(new WriteBehindWriter.Writer() {
+            public void write() {
+                mStore.store(getState());
+            }
+        }, WriteBehindWriter.DEFAULT_DELAY_MS);
     }
 
     /**
@@ -98,160 +134,230 @@ public class ServerManagedPolicy implements Policy {
      * <li>LU: a deep link URL that can enable access for unlicensed apps (e.g.
      * buy app on the Play Store)
      * </ul>
+     * <p>
+     * The new values take effect immediately. They are written to preferences
+     * shortly afterwards on a background thread; call {@link #flush()} to
+     * write them out synchronously.
      *
      * @param response the result from validating the server response
      * @param rawData the raw server response data
      */
-    public void processServerResponse(int response, ResponseData rawData) {
+    public synchronized void processServerResponse(int response, ResponseData rawData) {
+        PolicyState state = getState();
 
         // Update retry counter
-        if (response != Policy.RETRY) {
-            setRetryCount(0);
-        } else {
-            setRetryCount(mRetryCount + 1);
-        }
+        long retryCount = response != Policy.RETRY ? 0 : state.retryCount + 1;
 
         // Update server policy data
+        long validityTimestamp = state.validityTimestamp;
+        long retryUntil = state.retryUntil;
+        long maxRetries = state.maxRetries;
+        String licensingUrl = state.licensingUrl;
         Map<String, String> extras = decodeExtras(rawData);
         if (response == Policy.LICENSED) {
-            mLastResponse = response;
             // Reset the licensing URL since it is only applicable for NOT_LICENSED responses.
-            setLicensingUrl(null);
-            setValidityTimestamp(extras.get("VT"));
-            setRetryUntil(extras.get("GT"));
-            setMaxRetries(extras.get("GR"));
+            licensingUrl = null;
+            validityTimestamp = parseValidityTimestamp(extras.get("VT"));
+            retryUntil = parseRetryUntil(extras.get("GT"));
+            maxRetries = parseMaxRetries(extras.get("GR"));
         } else if (response == Policy.NOT_LICENSED) {
             // Clear out stale retry params
-            setValidityTimestamp(DEFAULT_VALIDITY_TIMESTAMP);
-            setRetryUntil(DEFAULT_RETRY_UNTIL);
-            setMaxRetries(DEFAULT_MAX_RETRIES);
+            validityTimestamp = 0;
+            retryUntil = 0;
+            maxRetries = 0;
             // Update the licensing URL
-            setLicensingUrl(extras.get("LU"));
+            licensingUrl = extras.get("LU");
         }
 
-        setLastResponse(response);
-        mPreferences.commit();
+        // Publish all changes at once.
+        publish(new PolicyState(response, System.currentTimeMillis(), validityTimestamp,
+                retryUntil, maxRetries, retryCount, licensingUrl));
     }
 
     /**
-     * Set the last license response received from the server and add to
-     * preferences. You must manually call PreferenceObfuscator.commit() to
-     * commit these changes to disk.
-     *
-     * @param l the response
+     * Returns the current policy data, waiting for the stored data to be
+     * loaded the first time it is needed. When sharing with other processes,
+     * the latest shared data wins over this process's own copy.
      */
-    private void setLastResponse(int l) {
-        mLastResponseTime = System.currentTimeMillis();
-        mLastResponse = l;
-        mPreferences.putString(PREF_LAST_RESPONSE, Integer.toString(l));
+    private PolicyState getState() {
+        PolicyState state = mState;
+        if (state == null) {
+            state = loadState();
+        }
+        SharedPolicyStateFile sharedFile = mSharedFile;
+        if (sharedFile != null) {
+            PolicyState shared = sharedFile.read();
+            if (shared != null) {
+                return shared;
+            }
+        }
+        return state;
+    }
+
+    private synchronized PolicyState loadState() {
+        if (mState == null) {
+            if (mStateFile != null) {
+                try {
+                    mSharedFile = new SharedPolicyStateFile(mStateFile, mObfuscator, true);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to open policy state file, using preferences", e);
+                }
+            } else if (mMultiProcess) {
+                try {
+                    mSharedFile = new SharedPolicyStateFile(
+                            new File(mContext.getFilesDir(), PREFS_FILE + ".shared"),
+                            mObfuscator, false);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to open shared policy state, not sharing", e);
+                }
+            }
+
+            if (mStateFile != null && mSharedFile != null) {
+                PolicyState state = mSharedFile.read();
+                if (state == null) {
+                    // Nothing usable in the file yet: import the preferences.
+                    PolicyStateStore store = new PolicyStateStore(mContext, PREFS_FILE,
+                            mObfuscator);
+                    state = store.load();
+                    if (!mSharedFile.write(state)) {
+                        // Too large for the file, as when publish() fell back to preferences.
+                        mStore = store;
+                    }
+                }
+                mState = state;
+            } else {
+                if (mStore == null) {
+                    mStore = new PolicyStateStore(mContext, PREFS_FILE, mObfuscator);
+                }
+                mState = mStore.load();
+            }
+        }
+        return mState;
     }
 
     /**
-     * Set the current retry count and add to preferences. You must manually
-     * call PreferenceObfuscator.commit() to commit these changes to disk.
-     *
-     * @param c the new retry count
+     * Makes a new state current, writes it to the shared or state file and,
+     * unless the state file replaces them, schedules writing it to
+     * preferences. A state the state file cannot hold goes to preferences
+     * too, and the emptied file makes the next loadState() import it from
+     * there. Callers must hold the policy lock.
+     */
+    private void publish(PolicyState state) {
+        mState = state;
+        SharedPolicyStateFile sharedFile = mSharedFile;
+        if (sharedFile != null && !sharedFile.write(state)) {
+            // getState() must not go back to the older state in the file.
+            if (sharedFile.clear()) {
+                Log.w(TAG, "Unable to share policy state, cleared shared file");
+            } else {
+                Log.w(TAG, "Unable to share policy state, not sharing");
+                mSharedFile = null;
+            }
+            if (mStore == null) {
+                // The state file was the only copy; keep this state in preferences instead.
+                Log.w(TAG, "Unable to write policy state file, using preferences");
+                mStore = new PolicyStateStore(mContext, PREFS_FILE, mObfuscator);
+            }
+        }
+        if (mStore != null) {
+            mWriter.schedule();
+        }
+    }
+
+    /**
+     * Writes any policy data that has not been persisted yet to preferences,
+     * or to storage when it is kept in a state file, blocking until the write
+     * completes. Call this before the process is expected to go away, or when
+     * a test needs the data on disk.
      */
-    private void setRetryCount(long c) {
-        mRetryCount = c;
-        mPreferences.putString(PREF_RETRY_COUNT, Long.toString(c));
+    public void flush() {
+        mWriter.flush();
+        SharedPolicyStateFile sharedFile = mSharedFile;
+        if (sharedFile != null) {
+            sharedFile.flush();
+        }
+    }
+
+    /**
+     * Returns true once the stored policy data has been loaded, so that
+     * {@link #allowAccess()} answers without waiting for it.
+     */
+    public boolean isLoaded() {
+        if (mState != null) {
+            return true;
+        }
+        // Loading the state file, or the shared file next to the preferences, still takes
+        // a call to loadState().
+        PolicyStateStore store = mStore;
+        return mStateFile == null && !mMultiProcess && store != null && store.isLoaded();
     }
 
     public long getRetryCount() {
-        return mRetryCount;
+        return getState().retryCount;
     }
 
     /**
-     * Set the last validity timestamp (VT) received from the server and add to
-     * preferences. You must manually call PreferenceObfuscator.commit() to
-     * commit these changes to disk.
+     * Parse the validity timestamp (VT) received from the server.
      *
      * @param validityTimestamp the VT string received
+     * @return the timestamp, or one minute from now if it is missing
      */
-    private void setValidityTimestamp(String validityTimestamp) {
-        Long lValidityTimestamp;
+    private long parseValidityTimestamp(String validityTimestamp) {
         try {
-            lValidityTimestamp = Long.parseLong(validityTimestamp);
+            return Long.parseLong(validityTimestamp);
         } catch (NumberFormatException e) {
             // No response or not parsable, expire in one minute.
             Log.w(TAG, "License validity timestamp (VT) missing, caching for a minute");
-            lValidityTimestamp = System.currentTimeMillis() + MILLIS_PER_MINUTE;
-            validityTimestamp = Long.toString(lValidityTimestamp);
+            return System.currentTimeMillis() + MILLIS_PER_MINUTE;
         }
-
-        mValidityTimestamp = lValidityTimestamp;
-        mPreferences.putString(PREF_VALIDITY_TIMESTAMP, validityTimestamp);
     }
 
     public long getValidityTimestamp() {
-        return mValidityTimestamp;
+        return getState().validityTimestamp;
     }
 
     /**
-     * Set the retry until timestamp (GT) received from the server and add to
-     * preferences. You must manually call PreferenceObfuscator.commit() to
-     * commit these changes to disk.
+     * Parse the retry until timestamp (GT) received from the server.
      *
      * @param retryUntil the GT string received
+     * @return the timestamp, or 0 if it is missing
      */
-    private void setRetryUntil(String retryUntil) {
-        Long lRetryUntil;
+    private long parseRetryUntil(String retryUntil) {
         try {
-            lRetryUntil = Long.parseLong(retryUntil);
+            return Long.parseLong(retryUntil);
         } catch (NumberFormatException e) {
             // No response or not parsable, expire immediately
             Log.w(TAG, "License retry timestamp (GT) missing, grace period disabled");
-            retryUntil = "0";
-            lRetryUntil = 0l;
+            return 0l;
         }
-
-        mRetryUntil = lRetryUntil;
-        mPreferences.putString(PREF_RETRY_UNTIL, retryUntil);
     }
 
     public long getRetryUntil() {
-      return mRetryUntil;
+      return getState().retryUntil;
     }
 
     /**
-     * Set the max retries value (GR) as received from the server and add to
-     * preferences. You must manually call PreferenceObfuscator.commit() to
-     * commit these changes to disk.
+     * Parse the max retries value (GR) as received from the server.
      *
      * @param maxRetries the GR string received
+     * @return the retry count, or 0 if it is missing
      */
-    private void setMaxRetries(String maxRetries) {
-        Long lMaxRetries;
+    private long parseMaxRetries(String maxRetries) {
         try {
-            lMaxRetries = Long.parseLong(maxRetries);
+            return Long.parseLong(maxRetries);
         } catch (NumberFormatException e) {
             // No response or not parsable, expire immediately
             Log.w(TAG, "Licence retry count (GR) missing, grace period disabled");
-            maxRetries = "0";
-            lMaxRetries = 0l;
+            return 0l;
         }
-
-        mMaxRetries = lMaxRetries;
-        mPreferences.putString(PREF_MAX_RETRIES, maxRetries);
     }
 
     public long getMaxRetries() {
-        return mMaxRetries;
-    }
-
-    /**
-     * Set the license URL value (LU) as received from the server and add to preferences. You must
-     * manually call PreferenceObfuscator.commit() to commit these changes to disk.
-     *
-     * @param url the LU string received
-     */
-    private void setLicensingUrl(String url) {
-        mLicensingUrl = url;
-        mPreferences.putString(PREF_LICENSING_URL, url);
+        return getState().maxRetries;
     }
 
     public String getLicensingUrl() {
-        return mLicensingUrl;
+        return getState().licensingUrl;
     }
 
     /**
@@ -263,20 +369,22 @@ public class ServerManagedPolicy implements Policy {
      * <li>a RETRY response was received in the last minute, and we are under
      * the RETRY count or in the RETRY period.
      * </ol>
+     * It does not lock and may be called from any thread.
      */
     public boolean allowAccess() {
+        PolicyState state = getState();
         long ts = System.currentTimeMillis();
-        if (mLastResponse == Policy.LICENSED) {
+        if (state.lastResponse == Policy.LICENSED) {
             // Check if the LICENSED response occurred within the validity timeout.
-            if (ts <= mValidityTimestamp) {
+            if (ts <= state.validityTimestamp) {
                 // Cached LICENSED response is still valid.
                 return true;
             }
-        } else if (mLastResponse == Policy.RETRY &&
-                   ts < mLastResponseTime + MILLIS_PER_MINUTE) {
+        } else if (state.lastResponse == Policy.RETRY &&
+                   ts < state.lastResponseTime + MILLIS_PER_MINUTE) {
             // Only allow access if we are within the retry period or we haven't used up our
             // max retries.
-            return (ts <= mRetryUntil || mRetryCount <= mMaxRetries);
+            return (ts <= state.retryUntil || state.retryCount <= state.maxRetries);
         }
         return false;
     }
@@ -289,9 +397,8 @@ public class ServerManagedPolicy implements Policy {
         }
 
         try {
-            URI rawExtras = new URI("?" + rawData.extra);
-            URIQueryDecoder.DecodeQuery(rawExtras, results);
-        } catch (URISyntaxException e) {
+            URIQueryDecoder.decodeQuery(rawData.extra, results);
+        } catch (IllegalArgumentException e) {
             Log.w(TAG, "Invalid syntax error while decoding extras data from server.");
         }
         return results;
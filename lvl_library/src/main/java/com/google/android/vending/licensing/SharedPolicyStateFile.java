@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.util.Log;
+
+import com.google.android.vending.licensing.util.Base64;
+import com.google.android.vending.licensing.util.Base64DecoderException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link PolicyState} kept in a memory-mapped file, shared by all processes
+ * of an app.
+ * <p>
+ * SharedPreferences are not safe to use from several processes, so each
+ * process of a multi-process app would otherwise keep its own policy data and
+ * run its own license checks. With this file, the process that gets a
+ * response publishes it and the others pick it up on their next read. A
+ * policy can also keep its state only here instead of in preferences; the
+ * file is then opened as durable, and every write is flushed to storage on
+ * the persistence thread shortly afterwards.
+ * <p>
+ * The file has a fixed layout: a header followed by two slots, each holding a
+ * response time, the length of an obfuscated record, a CRC32 of both and the
+ * record itself. A write fills the slot that is not current and then makes
+ * it current, so a write cut short by a crash leaves the previous state
+ * intact, and the checksum rejects a slot that was only partly written. As
+ * the flush happens after the slot has been made current, a crash during it
+ * can leave the new slot current but incomplete on storage; reads then fall
+ * back to the other slot, which still holds the previous state.
+ * <p>
+ * Writers serialize on an exclusive {@link FileLock}. Readers take no lock
+ * at all: the header holds a sequence number that a writer makes odd before
+ * changing the file and even again afterwards, and a reader retries if the
+ * number was odd or changed while it copied the record (a seqlock). When the
+ * number has not changed since the last read, the previously decoded state
+ * is returned without touching the record, so reads normally cost one memory
+ * access.
+ * <p>
+ * Accesses to the mapping are plain memory accesses, which Java does not
+ * order, and the writer may be another process; without fences a reader can
+ * see the record and the sequence number in any order. The sequence number
+ * therefore only makes torn reads rare. What keeps a reader from using one is
+ * the CRC, which a record mixed from two writes fails, and the obfuscator's
+ * own validation behind it. A record that passes both is a complete state
+ * some writer published, at worst one write behind, and the next read after
+ * the sequence number changes again picks up the newer one. The
+ * record is obfuscated like the preferences; with a {@link ByteObfuscator}
+ * the serialized state is obfuscated as bytes, without the Base64 and String
+ * steps.
+ * <p>
+ * Unlike the preferences, the file also carries the time of the last
+ * response, so a recent RETRY response is honored by every process.
+ */
+class SharedPolicyStateFile {
+
+    private static final String TAG = "SharedPolicyStateFile";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String KEY = "state";
+    private static final byte[] KEY_BYTES = KEY.getBytes(UTF8);
+
+    private static final int MAGIC = 0x4c564c32; // "LVL2"
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_CURRENT_SLOT = 8;
+    private static final int HEADER_SIZE = 16;
+
+    // Offsets within a slot.
+    private static final int SLOT_RESPONSE_TIME = 0;
+    private static final int SLOT_LENGTH = 8;
+    private static final int SLOT_CRC = 12;
+    private static final int SLOT_RECORD = 16;
+
+    /** Size of the file; each obfuscated record must fit into half of it. */
+    private static final int FILE_SIZE = 16 * 1024;
+    private static final int SLOT_SIZE = (FILE_SIZE - HEADER_SIZE) / 2;
+    private static final int MAX_RECORD_SIZE = SLOT_SIZE - SLOT_RECORD;
+
+    /** Attempts at an unlocked read before waiting for the writer's lock. */
+    private static final int MAX_OPTIMISTIC_READS = 100;
+
+    /**
+     * {@link FileLock}s are held on behalf of the whole process, so threads
+     * of the same process have to be serialized separately.
+     */
+    private static final Object sProcessLock = new Object();
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mBuffer;
+    private final Obfuscator mObfuscator;
+    /** Flushes writes to storage, or null if the file is not durable. */
+    private final WriteBehindWriter mFlusher;
+
+    /** The state decoded by the last read or written last, or null. */
+    private volatile CachedState mCached;
+
+    /** A decoded state and the sequence number it was read at, published as one. */
+    private static final class CachedState {
+        final int sequence;
+        final PolicyState state;
+
+        CachedState(int sequence, PolicyState state) {
+            this.sequence = sequence;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Opens or creates the file.
+     *
+     * @param file the file, in a directory shared by all processes of the app
+     * @param obfuscator An obfuscator to be used with the record.
+     * @param durable true to flush every write to storage, for when the file
+     *            is the only copy of the state. Flushing happens on the
+     *            persistence thread; see {@link #flush()}.
+     * @throws IOException if the file cannot be created or mapped
+     */
+    SharedPolicyStateFile(File file, Obfuscator obfuscator, boolean durable) throws IOException {
+        mObfuscator = obfuscator;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        mChannel = raf.getChannel();
+        try {
+            synchronized (sProcessLock) {
+                FileLock lock = mChannel.lock();
+                try {
+                    if (raf.length() < FILE_SIZE) {
+                        raf.setLength(FILE_SIZE);
+                    }
+                    mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+                    if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC) {
+                        // New or foreign file: start out empty.
+                        mBuffer.putInt(OFFSET_SEQUENCE, 0);
+                        mBuffer.putInt(OFFSET_CURRENT_SLOT, 0);
+                        mBuffer.putInt(slotOffset(0) + SLOT_LENGTH, 0);
+                        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        if (durable) {
+            mFlusher = new WriteBehindWriter(new WriteBehindWriter.Writer() {
+                public void write() {
+                    mBuffer.force();
+                }
+            }, 0);
+            mFlusher.schedule();
+        } else {
+            mFlusher = null;
+        }
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the state most recently written by any process, or null if none
+     * has been written yet or it cannot be decoded. Safe to call from any
+     * thread without blocking, unless a writer keeps getting in the way.
+     */
+    PolicyState read() {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+            int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+            CachedState cached = mCached;
+            if (cached != null && sequence == cached.sequence) {
+                return cached.state;
+            }
+            if ((sequence & 1) != 0) {
+                // A write is in progress.
+                Thread.yield();
+                continue;
+            }
+            int slot = mBuffer.getInt(OFFSET_CURRENT_SLOT);
+            long responseTime = 0;
+            byte[] record = null;
+            if (slot == 0 || slot == 1) {
+                record = copyRecord(slot);
+                if (record == null && isDamaged(slot)) {
+                    // A torn read or a damaged slot; only the lock tells them apart.
+                    break;
+                }
+                responseTime = mBuffer.getLong(slotOffset(slot) + SLOT_RESPONSE_TIME);
+            }
+            if (mBuffer.getInt(OFFSET_SEQUENCE) == sequence) {
+                return cache(sequence, record, responseTime);
+            }
+        }
+        return readLocked();
+    }
+
+    /**
+     * Reads the record while holding the file lock, for when a writer keeps
+     * getting in the way, died halfway through a write, or the current slot
+     * was damaged by a crash before it reached storage.
+     */
+    private PolicyState readLocked() {
+        synchronized (sProcessLock) {
+            FileLock lock = null;
+            try {
+                lock = mChannel.lock();
+                // Even if the last writer died mid-write, the current slot is complete,
+                // unless it never fully reached storage.
+                int slot = mBuffer.getInt(OFFSET_CURRENT_SLOT);
+                if (slot != 0 && slot != 1) {
+                    return null;
+                }
+                byte[] record = copyRecord(slot);
+                if (record == null && isDamaged(slot)) {
+                    slot = 1 - slot;
+                    record = copyRecord(slot);
+                }
+                return cache(mBuffer.getInt(OFFSET_SEQUENCE), record,
+                        mBuffer.getLong(slotOffset(slot) + SLOT_RESPONSE_TIME));
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to lock shared policy state", e);
+                return null;
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a slot that {@link #copyRecord} rejected is not simply
+     * empty, as {@link #clear()} leaves it.
+     */
+    private boolean isDamaged(int slot) {
+        return mBuffer.getInt(slotOffset(slot) + SLOT_LENGTH) != 0;
+    }
+
+    /**
+     * Returns a copy of a slot's record, or null if it is empty or fails the
+     * checksum (which a torn read can produce).
+     */
+    private byte[] copyRecord(int slot) {
+        int offset = slotOffset(slot);
+        int length = mBuffer.getInt(offset + SLOT_LENGTH);
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        for (int i = 0; i < length; i++) {
+            record[i] = mBuffer.get(offset + SLOT_RECORD + i);
+        }
+        long responseTime = mBuffer.getLong(offset + SLOT_RESPONSE_TIME);
+        if (mBuffer.getInt(offset + SLOT_CRC) != checksum(responseTime, record)) {
+            return null;
+        }
+        return record;
+    }
+
+    private static int checksum(long responseTime, byte[] record) {
+        CRC32 crc = new CRC32();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (responseTime >>> shift));
+        }
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    private PolicyState cache(int sequence, byte[] record, long responseTime) {
+        PolicyState state = record == null ? null : decode(record, responseTime);
+        mCached = new CachedState(sequence, state);
+        return state;
+    }
+
+    private PolicyState decode(byte[] record, long responseTime) {
+        try {
+            byte[] serialized;
+            if (mObfuscator instanceof ByteObfuscator) {
+                serialized = ((ByteObfuscator) mObfuscator).unobfuscate(record, KEY_BYTES);
+            } else {
+                String encoded = mObfuscator.unobfuscate(new String(record, UTF8), KEY);
+                serialized = Base64.decode(encoded);
+            }
+            PolicyState state = PolicyState.fromByteArray(serialized);
+            return new PolicyState(state.lastResponse, responseTime, state.validityTimestamp,
+                    state.retryUntil, state.maxRetries, state.retryCount, state.licensingUrl,
+                    state.expansionFiles);
+        } catch (ValidationException e) {
+            Log.w(TAG, "Validation error while reading shared policy state");
+        } catch (Base64DecoderException e) {
+            Log.w(TAG, "Unable to decode shared policy state");
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unable to parse shared policy state");
+        }
+        return null;
+    }
+
+    /**
+     * Publishes a state to all processes.
+     *
+     * @return false if the state could not be written, for example because
+     *         it is too large for the file
+     */
+    boolean write(PolicyState state) {
+        byte[] record;
+        if (mObfuscator instanceof ByteObfuscator) {
+            record = ((ByteObfuscator) mObfuscator).obfuscate(state.toByteArray(), KEY_BYTES);
+        } else {
+            record = mObfuscator.obfuscate(Base64.encode(state.toByteArray()), KEY)
+                    .getBytes(UTF8);
+        }
+        if (record.length > MAX_RECORD_SIZE) {
+            Log.w(TAG, "Policy state too large to share: " + record.length + " bytes");
+            return false;
+        }
+        return commit(state.lastResponseTime, record, state);
+    }
+
+    /**
+     * Empties the file, so that reads return null until the next write. This
+     * keeps an older state from being read back after a newer one could not
+     * be written.
+     *
+     * @return false if the file could not be locked
+     */
+    boolean clear() {
+        return commit(0, new byte[0], null);
+    }
+
+    /**
+     * Makes a record current: an empty record makes reads return null.
+     */
+    private boolean commit(long responseTime, byte[] record, PolicyState state) {
+        int crc = checksum(responseTime, record);
+
+        synchronized (sProcessLock) {
+            FileLock lock = null;
+            try {
+                lock = mChannel.lock();
+                // An odd sequence number left behind by a dead writer is made even again here.
+                int sequence = mBuffer.getInt(OFFSET_SEQUENCE) | 1;
+                mBuffer.putInt(OFFSET_SEQUENCE, sequence);
+                int slot = mBuffer.getInt(OFFSET_CURRENT_SLOT) == 0 ? 1 : 0;
+                int offset = slotOffset(slot);
+                mBuffer.putLong(offset + SLOT_RESPONSE_TIME, responseTime);
+                mBuffer.putInt(offset + SLOT_LENGTH, record.length);
+                mBuffer.putInt(offset + SLOT_CRC, crc);
+                for (int i = 0; i < record.length; i++) {
+                    mBuffer.put(offset + SLOT_RECORD + i, record[i]);
+                }
+                mBuffer.putInt(OFFSET_CURRENT_SLOT, slot);
+                mBuffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+                if (mFlusher != null) {
+                    mFlusher.schedule();
+                }
+                mCached = new CachedState(sequence + 1, state);
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to lock shared policy state", e);
+                return false;
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Flushes any writes that have not reached storage yet, blocking until
+     * they have. Does nothing if the file is not durable.
+     */
+    void flush() {
+        if (mFlusher != null) {
+            mFlusher.flush();
+        }
+    }
+
+    private static void release(FileLock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                // The lock goes away with the channel at the latest.
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link KeyValueStore} backed by {@link SharedPreferences}, the default
+ * storage of {@link PreferenceObfuscator}.
+ */
+public class SharedPreferencesStore implements KeyValueStore {
+
+    private final SharedPreferences mPreferences;
+
+    /**
+     * @param sp A SharedPreferences instance provided by the system.
+     */
+    public SharedPreferencesStore(SharedPreferences sp) {
+        mPreferences = sp;
+    }
+
+    public String getString(String key, String defValue) {
+        return mPreferences.getString(key, defValue);
+    }
+
+    public KeyValueStore.Editor edit() {
+        return new KeyValueStore.Editor() {
+            // A null value removes the key.
+            private final Map<String, String> mChanges = new LinkedHashMap<String, String>();
+
+            public KeyValueStore.Editor putString(String key, String value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            public KeyValueStore.Editor remove(String key) {
+                return putString(key, null);
+            }
+
+            public boolean commit() {
+                Map<String, String> previous = new HashMap<String, String>();
+                for (String key : mChanges.keySet()) {
+                    previous.put(key, mPreferences.getString(key, null));
+                }
+                if (write(mChanges)) {
+                    return true;
+                }
+                // SharedPreferences keeps the changes of a failed commit in memory; take them
+                // back, as the storage still holds the previous values.
+                write(previous);
+                return false;
+            }
+        };
+    }
+
+    private boolean write(Map<String, String> changes) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                editor.remove(change.getKey());
+            } else {
+                editor.putString(change.getKey(), change.getValue());
+            }
+        }
+        return editor.commit();
+    }
+}
@@ -18,8 +18,6 @@ package com.google.android.vending.licensing;
 
 import android.util.Log;
 import com.google.android.vending.licensing.util.URIQueryDecoder;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -89,9 +87,8 @@ public class StrictPolicy implements Policy {
         }
 
         try {
-            URI rawExtras = new URI("?" + rawData.extra);
-            URIQueryDecoder.DecodeQuery(rawExtras, results);
-        } catch (URISyntaxException e) {
+            URIQueryDecoder.decodeQuery(rawData.extra, results);
+        } catch (IllegalArgumentException e) {
             Log.w(TAG, "Invalid syntax error while decoding extras data from server.");
         }
         return results;
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+/**
+ * Defers and coalesces writes of in-memory state to persistent storage.
+ * <p>
+ * Callers update their in-memory state and then call {@link #schedule()}. The
+ * actual write happens a short time later on the {@link PersistenceThread}, so
+ * any number of updates made within that window (a burst of RETRY responses,
+ * for example) cost a single write. {@link #flush()} performs any pending
+ * write immediately on the calling thread.
+ */
+class WriteBehindWriter {
+
+    /**
+     * Writes the current in-memory state to storage. Implementations must take
+     * a consistent snapshot of the state they write.
+     */
+    interface Writer {
+        void write();
+    }
+
+    /** Default time (in milliseconds) that writes are held back and coalesced. */
+    static final long DEFAULT_DELAY_MS = 1000;
+
+    private final Writer mWriter;
+    private final long mDelayMs;
+    private final Object mLock = new Object();
+    private final Object mWriteLock = new Object();
+    private boolean mDirty;
+    private boolean mScheduled;
+
+    private final Runnable mFlushTask = new Runnable() {
+        public void run() {
+            synchronized (mLock) {
+                mScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    /**
+     * @param writer performs the actual write
+     * @param delayMs time (in milliseconds) to hold back and coalesce writes
+     */
+    WriteBehindWriter(Writer writer, long delayMs) {
+        mWriter = writer;
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * Marks the state as changed. A write will happen on the background thread
+     * within the configured delay, unless {@link #flush()} gets there first.
+     */
+    void schedule() {
+        synchronized (mLock) {
+            mDirty = true;
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        PersistenceThread.getHandler().postDelayed(mFlushTask, mDelayMs);
+    }
+
+    /**
+     * Performs any pending write on the calling thread and returns once it is
+     * on disk. Does nothing if there are no pending changes.
+     */
+    void flush() {
+        synchronized (mWriteLock) {
+            synchronized (mLock) {
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+            }
+            mWriter.write();
+        }
+    }
+}
@@ -14,6 +14,8 @@
 
 package com.google.android.vending.licensing.util;
 
+import java.nio.ByteBuffer;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -46,15 +48,15 @@ public class Base64 {
   public final static boolean DECODE = false;
 
   /** The equals sign (=) as a byte. */
-  private final static byte EQUALS_SIGN = (byte) '=';
+  final static byte EQUALS_SIGN = (byte) '=';
 
   /** The new line character (\n) as a byte. */
-  private final static byte NEW_LINE = (byte) '\n';
+  final static byte NEW_LINE = (byte) '\n';
 
   /**
    * The 64 valid Base64 values.
    */
-  private final static byte[] ALPHABET =
+  final static byte[] ALPHABET =
       {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
           (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
           (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -72,7 +74,7 @@ public class Base64 {
   /**
    * The 64 valid web safe Base64 values.
    */
-  private final static byte[] WEBSAFE_ALPHABET =
+  final static byte[] WEBSAFE_ALPHABET =
       {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
           (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
           (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -91,7 +93,7 @@ public class Base64 {
    * Translates a Base64 value to either its 6-bit reconstruction value
    * or a negative number indicating some other meaning.
    **/
-  private final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
+  final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
       -5, -5, // Whitespace: Tab and Linefeed
       -9, -9, // Decimal 11 - 12
       -5, // Whitespace: Carriage Return
@@ -125,7 +127,7 @@ public class Base64 {
       };
 
   /** The web safe decodabet */
-  private final static byte[] WEBSAFE_DECODABET =
+  final static byte[] WEBSAFE_DECODABET =
       {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
           -5, -5, // Whitespace: Tab and Linefeed
           -9, -9, // Decimal 11 - 12
@@ -161,9 +163,9 @@ public class Base64 {
       };
 
   // Indicates white space in encoding
-  private final static byte WHITE_SPACE_ENC = -5;
+  final static byte WHITE_SPACE_ENC = -5;
   // Indicates equals sign in encoding
-  private final static byte EQUALS_SIGN_ENC = -1;
+  final static byte EQUALS_SIGN_ENC = -1;
 
   /** Defeats instantiation. */
   private Base64() {
@@ -247,6 +249,17 @@ public class Base64 {
     return encode(source, 0, source.length, ALPHABET, true);
   }
 
+  /**
+   * Encodes part of a byte array into Base64 notation.
+   *
+   * @param source The data to convert
+   * @param off Offset in array where conversion should begin
+   * @param len Length of data to convert
+   */
+  public static String encode(byte[] source, int off, int len) {
+    return encode(source, off, len, ALPHABET, true);
+  }
+
   /**
    * Encodes a byte array into web safe Base64 notation.
    *
@@ -271,19 +284,142 @@ public class Base64 {
    */
   public static String encode(byte[] source, int off, int len, byte[] alphabet,
       boolean doPadding) {
-    byte[] outBuff = encode(source, off, len, alphabet, Integer.MAX_VALUE);
-    int outLen = outBuff.length;
+    byte[] outBuff = new byte[encodedLength(len, doPadding)];
+    encode(source, off, len, outBuff, 0, outBuff.length, alphabet, doPadding);
+    return new String(outBuff);
+  }
 
-    // If doPadding is false, set length to truncate '='
-    // padding characters
-    while (doPadding == false && outLen > 0) {
-      if (outBuff[outLen - 1] != '=') {
-        break;
+  /**
+   * Returns the exact number of bytes the Base64 encoding of
+   * <var>len</var> bytes takes, without line breaks.
+   *
+   * @param len Length of data to convert
+   * @param doPadding is {@code true} if the result is padded with '=' chars
+   * @return the length of the encoded data
+   */
+  public static int encodedLength(int len, boolean doPadding) {
+    if (doPadding) {
+      return (len + 2) / 3 * 4;
+    }
+    // Two characters for a trailing byte, three for two trailing bytes.
+    int remainder = len % 3;
+    return len / 3 * 4 + (remainder == 0 ? 0 : remainder + 1);
+  }
+
+  /**
+   * Encodes part of a byte array into Base64 notation, writing the result
+   * to <var>destination</var> instead of allocating it.
+   *
+   * @param source The data to convert
+   * @param off Offset in array where conversion should begin
+   * @param len Length of data to convert
+   * @param destination the array to hold the conversion
+   * @param destOffset the index where output will be put
+   * @return the number of bytes written, {@link #encodedLength(int, boolean)
+   *         encodedLength(len, true)}
+   * @throws IllegalArgumentException if <var>destination</var> is too small
+   */
+  public static int encodeTo(byte[] source, int off, int len, byte[] destination,
+      int destOffset) {
+    return encode(source, off, len, destination, destOffset, destination.length,
+        ALPHABET, true);
+  }
+
+  /**
+   * Encodes part of a byte array into web safe Base64 notation, writing the
+   * result to <var>destination</var> instead of allocating it.
+   *
+   * @param source The data to convert
+   * @param off Offset in array where conversion should begin
+   * @param len Length of data to convert
+   * @param destination the array to hold the conversion
+   * @param destOffset the index where output will be put
+   * @param doPadding is {@code true} to pad result with '=' chars
+   *        if it does not fall on 3 byte boundaries
+   * @return the number of bytes written, {@link #encodedLength(int, boolean)
+   *         encodedLength(len, doPadding)}
+   * @throws IllegalArgumentException if <var>destination</var> is too small
+   */
+  public static int encodeWebSafeTo(byte[] source, int off, int len,
+      byte[] destination, int destOffset, boolean doPadding) {
+    return encode(source, off, len, destination, destOffset, destination.length,
+        WEBSAFE_ALPHABET, doPadding);
+  }
+
+  /**
+   * Encodes part of a byte array into Base64 notation, writing the result
+   * to <var>destination</var> at its position and advancing the position.
+   *
+   * @param source The data to convert
+   * @param off Offset in array where conversion should begin
+   * @param len Length of data to convert
+   * @param destination the buffer to hold the conversion
+   * @return the number of bytes written
+   * @throws IllegalArgumentException if <var>destination</var> has too little
+   *         room left
+   */
+  public static int encodeTo(byte[] source, int off, int len,
+      ByteBuffer destination) {
+    if (!destination.hasArray()) {
+      checkRoom(destination.remaining(), encodedLength(len, true));
+      byte[] encoded = encode(source, off, len, ALPHABET, Integer.MAX_VALUE);
+      destination.put(encoded);
+      return encoded.length;
+    }
+    int written = encode(source, off, len, destination.array(),
+        destination.arrayOffset() + destination.position(),
+        destination.arrayOffset() + destination.limit(), ALPHABET, true);
+    destination.position(destination.position() + written);
+    return written;
+  }
+
+  /**
+   * Encodes into <var>destination</var>, which must have room up to
+   * <var>destLimit</var>, without line breaks.
+   */
+  static int encode(byte[] source, int off, int len, byte[] destination,
+      int destOffset, int destLimit, byte[] alphabet, boolean doPadding) {
+    checkRoom(destLimit - destOffset, encodedLength(len, doPadding));
+    int d = 0;
+    int e = destOffset;
+    int len2 = len - 2;
+    for (; d < len2; d += 3, e += 4) {
+      int inBuff =
+          ((source[d + off] << 24) >>> 8)
+              | ((source[d + 1 + off] << 24) >>> 16)
+              | ((source[d + 2 + off] << 24) >>> 24);
+      destination[e] = alphabet[(inBuff >>> 18)];
+      destination[e + 1] = alphabet[(inBuff >>> 12) & 0x3f];
+      destination[e + 2] = alphabet[(inBuff >>> 6) & 0x3f];
+      destination[e + 3] = alphabet[(inBuff) & 0x3f];
+    }
+
+    // The last one or two bytes, written without going through a
+    // scratch quartet so that unpadded output fits an exact-sized array.
+    if (d < len) {
+      boolean twoBytes = len - d == 2;
+      int inBuff = ((source[d + off] << 24) >>> 8)
+          | (twoBytes ? ((source[d + 1 + off] << 24) >>> 16) : 0);
+      destination[e++] = alphabet[(inBuff >>> 18)];
+      destination[e++] = alphabet[(inBuff >>> 12) & 0x3f];
+      if (twoBytes) {
+        destination[e++] = alphabet[(inBuff >>> 6) & 0x3f];
+      }
+      if (doPadding) {
+        destination[e++] = EQUALS_SIGN;
+        if (!twoBytes) {
+          destination[e++] = EQUALS_SIGN;
+        }
       }
-      outLen -= 1;
     }
+    return e - destOffset;
+  }
 
-    return new String(outBuff, 0, outLen);
+  private static void checkRoom(int room, int needed) {
+    if (needed > room) {
+      throw new IllegalArgumentException("Output needs " + needed
+          + " bytes, only " + room + " available");
+    }
   }
 
   /**
@@ -408,6 +544,71 @@ public class Base64 {
   } // end decodeToBytes
 
 
+  /**
+   * Decodes whole quartets from the start of <var>source</var>, two at a
+   * time, until one of them holds anything other than alphabet characters.
+   * The eight table lookups for a pair of quartets are combined into one
+   * 48-bit word, and since whitespace, padding and invalid characters all
+   * have negative decodabet entries, a single sign test of the lookups OR-ed
+   * together decides whether the pair can take this path.
+   * The last quartet is never decoded here, as it may be padded.
+   *
+   * @param source the array to convert
+   * @param off the index where conversion begins
+   * @param len the number of bytes of <var>source</var> to look at
+   * @param destination the array to hold the conversion
+   * @param destOffset the index where output will be put
+   * @param destLimit the index output must stop before
+   * @param decodabet the decodabet for decoding Base64 content
+   * @return the number of source bytes decoded, a multiple of 4
+   */
+  private static int decodeQuartets(byte[] source, int off, int len,
+      byte[] destination, int destOffset, int destLimit, byte[] decodabet) {
+    // Stop early rather than overrun a destination that is too small for
+    // what turns out to be invalid input.
+    int limit = Math.min(len - 4, (destLimit - destOffset) / 3 * 4);
+    int d = 0;
+    int e = destOffset;
+    for (; d + 8 <= limit; d += 8, e += 6) {
+      int s = off + d;
+      int a0 = decodabet[source[s] & 0x7f];
+      int a1 = decodabet[source[s + 1] & 0x7f];
+      int a2 = decodabet[source[s + 2] & 0x7f];
+      int a3 = decodabet[source[s + 3] & 0x7f];
+      int b0 = decodabet[source[s + 4] & 0x7f];
+      int b1 = decodabet[source[s + 5] & 0x7f];
+      int b2 = decodabet[source[s + 6] & 0x7f];
+      int b3 = decodabet[source[s + 7] & 0x7f];
+      if ((a0 | a1 | a2 | a3 | b0 | b1 | b2 | b3) < 0) {
+        break;
+      }
+      long word = ((long) ((a0 << 18) | (a1 << 12) | (a2 << 6) | a3) << 24)
+          | ((b0 << 18) | (b1 << 12) | (b2 << 6) | b3);
+      destination[e] = (byte) (word >>> 40);
+      destination[e + 1] = (byte) (word >>> 32);
+      destination[e + 2] = (byte) (word >>> 24);
+      destination[e + 3] = (byte) (word >>> 16);
+      destination[e + 4] = (byte) (word >>> 8);
+      destination[e + 5] = (byte) word;
+    }
+    if (d + 4 <= limit) {
+      int s = off + d;
+      int a0 = decodabet[source[s] & 0x7f];
+      int a1 = decodabet[source[s + 1] & 0x7f];
+      int a2 = decodabet[source[s + 2] & 0x7f];
+      int a3 = decodabet[source[s + 3] & 0x7f];
+      if ((a0 | a1 | a2 | a3) >= 0) {
+        int word = (a0 << 18) | (a1 << 12) | (a2 << 6) | a3;
+        destination[e] = (byte) (word >>> 16);
+        destination[e + 1] = (byte) (word >>> 8);
+        destination[e + 2] = (byte) word;
+        d += 4;
+      }
+    }
+    return d;
+  }
+
+
   /**
    * Decodes data from Base64 notation.
    *
@@ -501,16 +702,146 @@ public class Base64 {
    */
   public static byte[] decode(byte[] source, int off, int len, byte[] decodabet)
       throws Base64DecoderException {
+    return decode(source, off, len, decodabet, true);
+  }
+
+  /**
+   * Decodes Base64 content, optionally without the word-at-a-time fast path.
+   * Exposed so that tests can compare the two paths.
+   */
+  static byte[] decode(byte[] source, int off, int len, boolean wordAtATime)
+      throws Base64DecoderException {
+    return decode(source, off, len, DECODABET, wordAtATime);
+  }
+
+  private static byte[] decode(byte[] source, int off, int len, byte[] decodabet,
+      boolean wordAtATime) throws Base64DecoderException {
     int len34 = len * 3 / 4;
     byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
-    int outBuffPosn = 0;
+    int outBuffPosn = decode(source, off, len, outBuff, 0, outBuff.length,
+        decodabet, wordAtATime);
+
+    byte[] out = new byte[outBuffPosn];
+    System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
+    return out;
+  }
+
+  /**
+   * Returns the exact number of bytes that Base64 content decodes to,
+   * for either alphabet. For invalid content, the result is only an
+   * estimate; decoding it fails anyway.
+   *
+   * @param source The Base64 encoded data
+   * @param off    The offset of where to begin decoding
+   * @param len    The length of characters to decode
+   * @return the length of the decoded data
+   */
+  public static int decodedLength(byte[] source, int off, int len) {
+    int significant = 0;
+    for (int i = 0; i < len; i++) {
+      byte sbiCrop = (byte) (source[i + off] & 0x7f);
+      if (sbiCrop == EQUALS_SIGN) {
+        break;
+      }
+      // The two decodabets agree on what is white space.
+      if (DECODABET[sbiCrop] != WHITE_SPACE_ENC) {
+        significant++;
+      }
+    }
+    int remainder = significant % 4;
+    return significant / 4 * 3 + (remainder > 1 ? remainder - 1 : 0);
+  }
+
+  /**
+   * Decodes Base64 content into <var>destination</var> instead of
+   * allocating the result.
+   *
+   * @param source     The Base64 encoded data
+   * @param off        The offset of where to begin decoding
+   * @param len        The length of characters to decode
+   * @param destination the array to hold the decoded data
+   * @param destOffset the index where output will be put
+   * @return the number of bytes written, which is
+   *         {@link #decodedLength(byte[], int, int)}
+   * @throws Base64DecoderException if the content is not valid Base64
+   * @throws IllegalArgumentException if <var>destination</var> is too small
+   */
+  public static int decodeTo(byte[] source, int off, int len, byte[] destination,
+      int destOffset) throws Base64DecoderException {
+    return decode(source, off, len, destination, destOffset, destination.length,
+        DECODABET, true);
+  }
+
+  /**
+   * Decodes web safe Base64 content into <var>destination</var> instead of
+   * allocating the result.
+   * Web safe encoding uses '-' instead of '+', '_' instead of '/'
+   *
+   * @param source     The Base64 encoded data
+   * @param off        The offset of where to begin decoding
+   * @param len        The length of characters to decode
+   * @param destination the array to hold the decoded data
+   * @param destOffset the index where output will be put
+   * @return the number of bytes written, which is
+   *         {@link #decodedLength(byte[], int, int)}
+   * @throws Base64DecoderException if the content is not valid Base64
+   * @throws IllegalArgumentException if <var>destination</var> is too small
+   */
+  public static int decodeWebSafeTo(byte[] source, int off, int len,
+      byte[] destination, int destOffset) throws Base64DecoderException {
+    return decode(source, off, len, destination, destOffset, destination.length,
+        WEBSAFE_DECODABET, true);
+  }
+
+  /**
+   * Decodes Base64 content into <var>destination</var> at its position,
+   * and advances the position.
+   *
+   * @param source     The Base64 encoded data
+   * @param off        The offset of where to begin decoding
+   * @param len        The length of characters to decode
+   * @param destination the buffer to hold the decoded data
+   * @return the number of bytes written
+   * @throws Base64DecoderException if the content is not valid Base64
+   * @throws IllegalArgumentException if <var>destination</var> has too little
+   *         room left
+   */
+  public static int decodeTo(byte[] source, int off, int len,
+      ByteBuffer destination) throws Base64DecoderException {
+    if (!destination.hasArray()) {
+      checkRoom(destination.remaining(), decodedLength(source, off, len));
+      byte[] decoded = decode(source, off, len, DECODABET, true);
+      destination.put(decoded);
+      return decoded.length;
+    }
+    int start = destination.arrayOffset() + destination.position();
+    int written = decode(source, off, len, destination.array(), start,
+        destination.arrayOffset() + destination.limit(), DECODABET, true);
+    destination.position(destination.position() + written);
+    return written;
+  }
+
+  /**
+   * Decodes into <var>destination</var>, which must have room up to
+   * <var>destLimit</var>.
+   *
+   * @return the number of bytes written
+   */
+  static int decode(byte[] source, int off, int len, byte[] destination,
+      int destOffset, int destLimit, byte[] decodabet, boolean wordAtATime)
+      throws Base64DecoderException {
+    // Plain quartets first; the loop below picks up from the first
+    // whitespace, padding or bad character, and always does the last quartet.
+    int i = wordAtATime
+        ? decodeQuartets(source, off, len, destination, destOffset, destLimit, decodabet)
+        : 0;
+    int outBuffPosn = destOffset + i / 4 * 3;
 
     byte[] b4 = new byte[4];
     int b4Posn = 0;
-    int i = 0;
     byte sbiCrop = 0;
     byte sbiDecode = 0;
-    for (i = 0; i < len; i++) {
+    for (; i < len; i++) {
       sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
       sbiDecode = decodabet[sbiCrop];
 
@@ -538,7 +869,8 @@ public class Base64 {
 
           b4[b4Posn++] = sbiCrop;
           if (b4Posn == 4) {
-            outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+            checkRoom(destLimit - outBuffPosn, 3);
+            outBuffPosn += decode4to3(b4, 0, destination, outBuffPosn, decodabet);
             b4Posn = 0;
           }
         }
@@ -559,12 +891,10 @@ public class Base64 {
         throw new Base64DecoderException("single trailing character at offset "
             + (len - 1));
       }
+      checkRoom(destLimit - outBuffPosn, b4Posn - 1);
       b4[b4Posn++] = EQUALS_SIGN;
-      outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+      outBuffPosn += decode4to3(b4, 0, destination, outBuffPosn, decodabet);
     }
-
-    byte[] out = new byte[outBuffPosn];
-    System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
-    return out;
+    return outBuffPosn - destOffset;
   }
 }
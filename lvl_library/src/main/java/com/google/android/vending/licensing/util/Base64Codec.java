@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+/**
+ * Base64 through the fastest codec available at runtime, with the
+ * behavior of {@link Base64}.
+ * <p>
+ * On API 26 and up, {@code java.util.Base64} does the work; the runtime
+ * replaces its loops with intrinsics. On older releases {@link Base64} is
+ * used.
+ * <p>
+ * {@code java.util.Base64} is stricter than {@link Base64}: it rejects white
+ * space and incomplete padding. Input it rejects is decoded again by
+ * {@link Base64}, so the same input is accepted as before, and invalid
+ * input fails with a {@link Base64DecoderException} with the same message.
+ * {@code android.util.Base64} is not used: it skips invalid characters
+ * instead of rejecting them.
+ */
+public class Base64Codec {
+
+    private static final Codec sCodec = selectCodec();
+
+    /** Defeats instantiation. */
+    private Base64Codec() {
+    }
+
+    private static Codec selectCodec() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return new JavaUtilCodec();
+        }
+        return new LegacyCodec();
+    }
+
+    /**
+     * Returns the name of the codec in use, for logging.
+     */
+    public static String getImplementation() {
+        return sCodec.getName();
+    }
+
+    /**
+     * Encodes a byte array into Base64 notation, as {@link Base64#encode(byte[])}.
+     */
+    public static String encode(byte[] source) {
+        return sCodec.encode(source);
+    }
+
+    /**
+     * Encodes a byte array into web safe Base64 notation, as
+     * {@link Base64#encodeWebSafe(byte[], boolean)}.
+     */
+    public static String encodeWebSafe(byte[] source, boolean doPadding) {
+        return sCodec.encodeWebSafe(source, doPadding);
+    }
+
+    /**
+     * Decodes data from Base64 notation, as {@link Base64#decode(String)}.
+     */
+    public static byte[] decode(String s) throws Base64DecoderException {
+        return sCodec.decode(s);
+    }
+
+    /**
+     * Decodes data from web safe Base64 notation, as
+     * {@link Base64#decodeWebSafe(String)}.
+     */
+    public static byte[] decodeWebSafe(String s) throws Base64DecoderException {
+        return sCodec.decodeWebSafe(s);
+    }
+
+    private static abstract class Codec {
+        abstract String getName();
+
+        abstract String encode(byte[] source);
+
+        abstract String encodeWebSafe(byte[] source, boolean doPadding);
+
+        abstract byte[] decode(String s) throws Base64DecoderException;
+
+        abstract byte[] decodeWebSafe(String s) throws Base64DecoderException;
+    }
+
+    private static class LegacyCodec extends Codec {
+        String getName() {
+            return "util.Base64";
+        }
+
+        String encode(byte[] source) {
+            return Base64.encode(source);
+        }
+
+        String encodeWebSafe(byte[] source, boolean doPadding) {
+            return Base64.encodeWebSafe(source, doPadding);
+        }
+
+        byte[] decode(String s) throws Base64DecoderException {
+            return Base64.decode(s);
+        }
+
+        byte[] decodeWebSafe(String s) throws Base64DecoderException {
+            return Base64.decodeWebSafe(s);
+        }
+    }
+
+    /**
+     * Only loaded on releases that have java.util.Base64.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private static class JavaUtilCodec extends Codec {
+        private final java.util.Base64.Encoder mEncoder = java.util.Base64.getEncoder();
+        private final java.util.Base64.Encoder mWebSafeEncoder =
+                java.util.Base64.getUrlEncoder();
+        private final java.util.Base64.Encoder mWebSafeUnpaddedEncoder =
+                java.util.Base64.getUrlEncoder().withoutPadding();
+        private final java.util.Base64.Decoder mDecoder = java.util.Base64.getDecoder();
+        private final java.util.Base64.Decoder mWebSafeDecoder =
+                java.util.Base64.getUrlDecoder();
+
+        String getName() {
+            return "java.util.Base64";
+        }
+
+        String encode(byte[] source) {
+            return mEncoder.encodeToString(source);
+        }
+
+        String encodeWebSafe(byte[] source, boolean doPadding) {
+            return (doPadding ? mWebSafeEncoder : mWebSafeUnpaddedEncoder)
+                    .encodeToString(source);
+        }
+
+        byte[] decode(String s) throws Base64DecoderException {
+            try {
+                return mDecoder.decode(s);
+            } catch (IllegalArgumentException e) {
+                // White space, lenient padding, or invalid input.
+                return Base64.decode(s);
+            }
+        }
+
+        byte[] decodeWebSafe(String s) throws Base64DecoderException {
+            try {
+                return mWebSafeDecoder.decode(s);
+            } catch (IllegalArgumentException e) {
+                return Base64.decodeWebSafe(s);
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that decodes Base64 text read from another stream.
+ * <p>
+ * The text is read in chunks, so memory use does not depend on its length.
+ * The stream accepts the same text as {@link Base64#decode(byte[])}, and
+ * decodes it to the same bytes. White space is skipped before the padding,
+ * and the padding may be left out. Everything after the first '=' is
+ * ignored, but at most one byte may follow it if it is the fourth
+ * character of a quartet, and the text must end in '=' or a newline.
+ * <p>
+ * Invalid input makes a read fail with an IOException whose cause is a
+ * {@link Base64DecoderException} with the message {@link Base64#decode}
+ * would have given. Anything decoded before the error has been returned by
+ * then, and an error that depends on the last byte is only reported at the
+ * end of the text.
+ */
+public class Base64InputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final byte[] mDecodabet;
+    private final byte[] mRaw = new byte[BUFFER_SIZE];
+    // Alphabet characters not yet decoded, at most three of them between
+    // reads. Whole quartets are decoded as soon as they have been read.
+    private final byte[] mEncoded = new byte[BUFFER_SIZE];
+    private int mEncodedLength;
+    private final byte[] mDecoded = new byte[BUFFER_SIZE / 4 * 3];
+    private int mDecodedPosition;
+    private int mDecodedLength;
+    // Where in its quartet the first '=' was read, 2 or 3, or -1 before that.
+    private int mPaddingPosition = -1;
+    private long mPaddingOffset;
+    private byte mLastByte;
+    // Offset in the encoded text, for error messages.
+    private long mOffset;
+    private boolean mEof;
+    private boolean mClosed;
+
+    /**
+     * Creates a stream decoding the standard alphabet.
+     *
+     * @param in the stream to read the encoded text from
+     */
+    public Base64InputStream(InputStream in) {
+        this(in, false);
+    }
+
+    /**
+     * @param in the stream to read the encoded text from
+     * @param webSafe true if the text uses the web safe alphabet, which has
+     *        '-' and '_' instead of '+' and '/'
+     */
+    public Base64InputStream(InputStream in, boolean webSafe) {
+        super(in);
+        mDecodabet = webSafe ? Base64.WEBSAFE_DECODABET : Base64.DECODABET;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return mDecoded[mDecodedPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if ((off | len) < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, mDecodedLength - mDecodedPosition);
+        System.arraycopy(mDecoded, mDecodedPosition, b, off, count);
+        mDecodedPosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int count = (int) Math.min(n - skipped, mDecodedLength - mDecodedPosition);
+            mDecodedPosition += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the number of decoded bytes that can be read without reading
+     * more text.
+     */
+    @Override
+    public int available() throws IOException {
+        checkOpen();
+        return mDecodedLength - mDecodedPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        super.close();
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Makes sure there are decoded bytes to read, unless the end of the
+     * text has been reached.
+     *
+     * @return false at the end of the decoded data
+     */
+    private boolean fill() throws IOException {
+        checkOpen();
+        while (mDecodedPosition == mDecodedLength) {
+            if (mEof) {
+                return false;
+            }
+            mDecodedPosition = 0;
+            mDecodedLength = 0;
+            // Room for three carried characters plus everything read.
+            int count = in.read(mRaw, 0, mRaw.length - mEncodedLength);
+            if (count < 0) {
+                mEof = true;
+                finish();
+            } else {
+                accept(count);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the alphabet characters from the raw chunk and decodes the
+     * whole quartets among them.
+     */
+    private void accept(int count) throws IOException {
+        for (int i = 0; i < count; i++, mOffset++) {
+            byte sbiCrop = (byte) (mRaw[i] & 0x7f); // Only the low seven bits
+            mLastByte = sbiCrop;
+            if (mPaddingPosition >= 0) {
+                // The rest is ignored; finish() checks the last byte.
+                if (mPaddingPosition == 3 && mOffset - mPaddingOffset > 1) {
+                    throw error("padding byte '=' falsely signals end of encoded value "
+                            + "at offset " + mPaddingOffset);
+                }
+                continue;
+            }
+            byte sbiDecode = mDecodabet[sbiCrop];
+            if (sbiDecode >= 0) {
+                mEncoded[mEncodedLength++] = sbiCrop;
+            } else if (sbiCrop == Base64.EQUALS_SIGN) {
+                // Padding must follow at least two characters of a quartet.
+                int quartetPosition = mEncodedLength % 4;
+                if (quartetPosition < 2) {
+                    throw error("invalid padding byte '=' at byte offset " + mOffset);
+                }
+                mPaddingPosition = quartetPosition;
+                mPaddingOffset = mOffset;
+            } else if (sbiDecode != Base64.WHITE_SPACE_ENC) {
+                throw error("Bad Base64 input character at " + mOffset + ": "
+                        + mRaw[i] + "(decimal)");
+            }
+        }
+        int whole = mEncodedLength - mEncodedLength % 4;
+        if (whole > 0) {
+            decode(whole);
+            System.arraycopy(mEncoded, whole, mEncoded, 0, mEncodedLength - whole);
+            mEncodedLength -= whole;
+        }
+    }
+
+    /**
+     * Decodes the final, possibly unpadded, characters.
+     */
+    private void finish() throws IOException {
+        if (mPaddingPosition >= 0 && mLastByte != Base64.EQUALS_SIGN
+                && mLastByte != Base64.NEW_LINE) {
+            throw error("encoded value has invalid trailing byte");
+        }
+        if (mEncodedLength == 1) {
+            throw error("single trailing character at offset " + (mOffset - 1));
+        }
+        if (mEncodedLength > 0) {
+            decode(mEncodedLength);
+            mEncodedLength = 0;
+        }
+    }
+
+    private void decode(int length) throws IOException {
+        try {
+            mDecodedLength = Base64.decode(mEncoded, 0, length, mDecoded, 0, mDecoded.length,
+                    mDecodabet, true);
+        } catch (Base64DecoderException e) {
+            // The characters have all been checked already.
+            throw error(e.getMessage());
+        }
+    }
+
+    private static IOException error(String message) {
+        IOException e = new IOException(message);
+        e.initCause(new Base64DecoderException(message));
+        return e;
+    }
+}
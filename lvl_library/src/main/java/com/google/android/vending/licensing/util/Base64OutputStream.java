@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that Base64-encodes the bytes written to it and passes
+ * the encoded text on to another stream, without line breaks.
+ * <p>
+ * Up to two bytes are held back until the next write, since the encoding
+ * works on groups of three. {@link #flush()} can therefore not pass them
+ * on; only {@link #close()} encodes them, with padding if requested, so the
+ * stream must be closed for the output to be complete.
+ */
+public class Base64OutputStream extends FilterOutputStream {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final byte[] mAlphabet;
+    private final boolean mDoPadding;
+    // Bytes that do not yet make up a group of three.
+    private final byte[] mPending = new byte[3];
+    private int mPendingLength;
+    private final byte[] mEncoded = new byte[BUFFER_SIZE];
+    private int mEncodedLength;
+    private boolean mClosed;
+
+    /**
+     * Creates a stream writing padded Base64 with the standard alphabet.
+     *
+     * @param out the stream to write the encoded text to
+     */
+    public Base64OutputStream(OutputStream out) {
+        this(out, false, true);
+    }
+
+    /**
+     * @param out the stream to write the encoded text to
+     * @param webSafe true to use the web safe alphabet, which has '-' and
+     *        '_' instead of '+' and '/'
+     * @param doPadding true to pad the end of the output with '=' chars
+     */
+    public Base64OutputStream(OutputStream out, boolean webSafe, boolean doPadding) {
+        super(out);
+        mAlphabet = webSafe ? Base64.WEBSAFE_ALPHABET : Base64.ALPHABET;
+        mDoPadding = doPadding;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        mPending[mPendingLength++] = (byte) b;
+        if (mPendingLength == 3) {
+            encode(mPending, 0, 3);
+            mPendingLength = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((off | len) < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkOpen();
+        while (mPendingLength > 0 && len > 0) {
+            write(b[off++]);
+            len--;
+        }
+        if (len == 0) {
+            return;
+        }
+        // Whole groups go straight from the caller's array.
+        int whole = len - len % 3;
+        while (whole > 0) {
+            int chunk = Math.min(whole, BUFFER_SIZE / 4 * 3);
+            encode(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+            whole -= chunk;
+        }
+        System.arraycopy(b, off, mPending, 0, len);
+        mPendingLength = len;
+    }
+
+    /**
+     * Writes out everything encoded so far and flushes the underlying
+     * stream. Up to two bytes may still be held back.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeEncoded();
+        out.flush();
+    }
+
+    /**
+     * Encodes the remaining bytes, writes everything out and closes the
+     * underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mPendingLength > 0) {
+                encode(mPending, 0, mPendingLength);
+                mPendingLength = 0;
+            }
+            writeEncoded();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void encode(byte[] source, int off, int len) throws IOException {
+        if (mEncodedLength + Base64.encodedLength(len, true) > mEncoded.length) {
+            writeEncoded();
+        }
+        mEncodedLength += Base64.encode(source, off, len, mEncoded, mEncodedLength,
+                mEncoded.length, mAlphabet, mDoPadding);
+    }
+
+    private void writeEncoded() throws IOException {
+        if (mEncodedLength > 0) {
+            out.write(mEncoded, 0, mEncodedLength);
+            mEncodedLength = 0;
+        }
+    }
+}
@@ -16,16 +16,23 @@
 
 package com.google.android.vending.licensing.util;
 
-import android.util.Log;
-
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.net.URLDecoder;
+import java.nio.charset.Charset;
 import java.util.Map;
-import java.util.Scanner;
 
 public class URIQueryDecoder {
-    private static final String TAG = "URIQueryDecoder";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the decoded parameters of a query, in the order in which they appear.
+     */
+    public interface QueryVisitor {
+        /**
+         * @param name the decoded parameter name
+         * @param value the decoded parameter value, or null if the parameter has no value
+         */
+        void visitParameter(String name, String value);
+    }
 
     /**
      * Decodes the query portion of the passed-in URI.
@@ -35,26 +42,122 @@ public class URIQueryDecoder {
      *            value will map to a null string
      */
     static public void DecodeQuery(URI encodedURI, Map<String, String> results) {
-        Scanner scanner = new Scanner(encodedURI.getRawQuery());
-        scanner.useDelimiter("&");
-        try {
-            while (scanner.hasNext()) {
-                String param = scanner.next();
-                String[] valuePair = param.split("=");
+        decodeQuery(encodedURI.getRawQuery(), results);
+    }
+
+    /**
+     * Decodes a raw (still percent-encoded) query string, such as the extras of a license
+     * response, without going through {@link URI}.
+     *
+     * @param rawQuery the query to decode, without the leading '?'
+     * @param results a map containing all query parameters. Query parameters that do not have a
+     *            value will map to a null string
+     * @throws IllegalArgumentException if a parameter or escape sequence is malformed
+     */
+    public static void decodeQuery(CharSequence rawQuery, final Map<String, String> results) {
+        decodeQuery(rawQuery, new QueryVisitor() {
+            public void visitParameter(String name, String value) {
+                results.put(name, value);
+            }
+        });
+    }
+
+    /**
+     * Decodes a raw (still percent-encoded) query string in a single pass, handing each
+     * parameter to the visitor as it is found. Only names and values that actually contain an
+     * escape sequence or a '+' are run through the percent decoder; all others are passed on as
+     * plain slices of the input.
+     *
+     * @param rawQuery the query to decode, without the leading '?'
+     * @param visitor receives each decoded (name, value) pair
+     * @throws IllegalArgumentException if a parameter or escape sequence is malformed
+     */
+    public static void decodeQuery(CharSequence rawQuery, QueryVisitor visitor) {
+        int length = rawQuery.length();
+        int start = 0;
+        while (start < length) {
+            int equals = -1;
+            boolean nameEncoded = false;
+            boolean valueEncoded = false;
+            int end = start;
+            for (; end < length; end++) {
+                char c = rawQuery.charAt(end);
+                if (c == '&') {
+                    break;
+                } else if (c == '=') {
+                    if (equals >= 0) {
+                        throw new IllegalArgumentException("query parameter invalid");
+                    }
+                    equals = end;
+                } else if (c == '%' || c == '+') {
+                    if (equals >= 0) {
+                        valueEncoded = true;
+                    } else {
+                        nameEncoded = true;
+                    }
+                }
+            }
+
+            // Empty parameters ("a&&b") carry no information and are skipped.
+            if (end > start) {
                 String name, value;
-                if (valuePair.length == 1) {
+                if (equals < 0) {
+                    name = decode(rawQuery, start, end, nameEncoded);
                     value = null;
-                } else if (valuePair.length == 2) {
-                    value = URLDecoder.decode(valuePair[1], "UTF-8");
                 } else {
-                    throw new IllegalArgumentException("query parameter invalid");
+                    name = decode(rawQuery, start, equals, nameEncoded);
+                    // A trailing '=' means the parameter has no value, as with "name" alone.
+                    value = equals + 1 == end ? null
+                            : decode(rawQuery, equals + 1, end, valueEncoded);
                 }
-                name = URLDecoder.decode(valuePair[0], "UTF-8");
-                results.put(name, value);
+                visitor.visitParameter(name, value);
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Decodes the slice [start, end) of the query using the same rules as
+     * {@link java.net.URLDecoder} with UTF-8: '+' becomes a space and runs of %XX escapes are
+     * decoded as UTF-8 bytes.
+     */
+    private static String decode(CharSequence s, int start, int end, boolean encoded) {
+        if (!encoded) {
+            return s.subSequence(start, end).toString();
+        }
+
+        StringBuilder sb = new StringBuilder(end - start);
+        byte[] bytes = null;
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c == '+') {
+                sb.append(' ');
+                i++;
+            } else if (c == '%') {
+                if (bytes == null) {
+                    bytes = new byte[(end - i) / 3];
+                }
+                int count = 0;
+                while (i + 2 < end && s.charAt(i) == '%') {
+                    int hi = Character.digit(s.charAt(i + 1), 16);
+                    int lo = Character.digit(s.charAt(i + 2), 16);
+                    if (hi < 0 || lo < 0) {
+                        throw new IllegalArgumentException(
+                                "Illegal hex characters in escape (%) pattern");
+                    }
+                    bytes[count++] = (byte) ((hi << 4) | lo);
+                    i += 3;
+                }
+                if (i < end && s.charAt(i) == '%') {
+                    throw new IllegalArgumentException("Incomplete trailing escape (%) pattern");
+                }
+                sb.append(new String(bytes, 0, count, UTF8));
+            } else {
+                sb.append(c);
+                i++;
             }
-        } catch (UnsupportedEncodingException e) {
-            // This should never happen.
-            Log.e(TAG, "UTF-8 Not Recognized as a charset.  Device configuration Error.");
         }
+        return sb.toString();
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import com.google.android.vending.licensing.util.Base64;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for AESGCMObfuscator.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AESGCMObfuscatorTest {
+    private static final byte[] SALT = new byte[]{
+            104, -12, 112, 82, -85, -10, -11, 61, 15, 54, 44, -66, -117, -89, -64, 110, -53, 123, 33
+    };
+    private static final String PACKAGE = "package";
+    private static final String DEVICE = "device";
+
+    private AESGCMObfuscator mObfuscator;
+
+    @Before
+    public void setUp() throws Exception {
+        mObfuscator = new AESGCMObfuscator(SALT, PACKAGE, DEVICE);
+    }
+
+    @Test
+    public void obfuscateUnobfuscate() throws Exception {
+        assertNull(mObfuscator.unobfuscate(mObfuscator.obfuscate(null, "key"), "key"));
+        String[] values = {"", "test", "0123456789abcdefghijklmnopqrstuvwxyz\u00F6"};
+        for (String value : values) {
+            String obfuscated = mObfuscator.obfuscate(value, "testKey");
+            assertTrue(mObfuscator.isCurrentFormat(obfuscated));
+            assertEquals(value, mObfuscator.unobfuscate(obfuscated, "testKey"));
+        }
+
+        byte[] original = new byte[] {1, 2, 3, 4, 5};
+        byte[] key = new byte[] {6};
+        byte[] obfuscated = mObfuscator.obfuscate(original, key);
+        assertEquals(mObfuscator.getObfuscatedSize(original.length, key), obfuscated.length);
+        assertArrayEquals(original, mObfuscator.unobfuscate(obfuscated, key));
+    }
+
+    @Test
+    public void obfuscateRandomized() throws Exception {
+        assertFalse(mObfuscator.obfuscate("test", "testKey")
+                .equals(mObfuscator.obfuscate("test", "testKey")));
+    }
+
+    @Test
+    public void shorterThanCbc() throws Exception {
+        Obfuscator cbc = new AESObfuscator(SALT, PACKAGE, DEVICE);
+        String value = "256";
+        assertTrue(mObfuscator.obfuscate(value, "lastResponse").length()
+                < cbc.obfuscate(value, "lastResponse").length());
+    }
+
+    @Test
+    public void unobfuscateDifferentKey() throws Exception {
+        String obfuscated = mObfuscator.obfuscate("test", "testKey");
+        try {
+            mObfuscator.unobfuscate(obfuscated, "otherKey");
+            fail("Should have thrown ValidationException");
+        } catch (ValidationException expected) {
+        }
+    }
+
+    @Test
+    public void unobfuscateTampered() throws Exception {
+        byte[] obfuscated = Base64.decode(mObfuscator.obfuscate("test", "testKey"));
+        for (int i = 0; i < obfuscated.length; i++) {
+            byte[] tampered = obfuscated.clone();
+            tampered[i] ^= 1;
+            try {
+                mObfuscator.unobfuscate(Base64.encode(tampered), "testKey");
+                fail("Should have thrown ValidationException for byte " + i);
+            } catch (ValidationException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void unobfuscateDifferentDevice() throws Exception {
+        String obfuscated = mObfuscator.obfuscate("test", "testKey");
+        Obfuscator other = new AESGCMObfuscator(SALT, PACKAGE, "otherDevice");
+        try {
+            other.unobfuscate(obfuscated, "testKey");
+            fail("Should have thrown ValidationException");
+        } catch (ValidationException expected) {
+        }
+    }
+
+    @Test
+    public void readsCbcValues() throws Exception {
+        Obfuscator cbc = new AESObfuscator(SALT, PACKAGE, DEVICE);
+        for (int i = 0; i < 50; i++) {
+            String obfuscated = cbc.obfuscate("value" + i, "testKey");
+            assertEquals("value" + i, mObfuscator.unobfuscate(obfuscated, "testKey"));
+        }
+    }
+
+    @Test
+    public void batchMatchesSingleValues() throws Exception {
+        String[] keys = {"a", "b", "c", "d"};
+        String[] obfuscated = mObfuscator.obfuscate(
+                new String[] {"one", null, "three", "four"}, keys);
+        assertNull(obfuscated[1]);
+        assertEquals("one", mObfuscator.unobfuscate(obfuscated[0], "a"));
+        // A value stored under another key and an older value, in the same batch.
+        obfuscated[2] = obfuscated[3];
+        obfuscated[3] = new AESObfuscator(SALT, PACKAGE, DEVICE).obfuscate("four", "d");
+        assertArrayEquals(new String[] {"one", null, null, "four"},
+                mObfuscator.unobfuscate(obfuscated, keys));
+    }
+
+    @Test
+    public void preferencesMigrated() throws Exception {
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        SharedPreferences sp = ctx.getSharedPreferences(
+                "com.google.android.vending.licensing.AESGCMObfuscatorTest",
+                Context.MODE_PRIVATE);
+        sp.edit().clear().commit();
+        Obfuscator cbc = new AESObfuscator(SALT, PACKAGE, DEVICE);
+        // Avoid the rare CBC value that looks like the current format.
+        String legacy;
+        int attempt = 0;
+        do {
+            legacy = cbc.obfuscate("Hello world" + attempt++, "testString");
+        } while (mObfuscator.isCurrentFormat(legacy));
+        String expected = "Hello world" + (attempt - 1);
+        sp.edit().putString("testString", legacy).commit();
+
+        final int[] obfuscations = new int[1];
+        AESGCMObfuscator counting = new AESGCMObfuscator(SALT, PACKAGE, DEVICE) {
+            @Override
+            public String obfuscate(String original, String key) {
+                obfuscations[0]++;
+                return super.obfuscate(original, key);
+            }
+        };
+        PreferenceObfuscator op = new PreferenceObfuscator(sp, counting);
+        assertEquals(expected, op.getString("testString", "fail"));
+        assertEquals(expected, op.getString("testString", "fail"));
+        // Reading re-encrypts nothing; the value is rewritten once, on commit.
+        assertEquals(0, obfuscations[0]);
+        op.commit();
+        assertEquals(1, obfuscations[0]);
+        String migrated = sp.getString("testString", null);
+        assertTrue(mObfuscator.isCurrentFormat(migrated));
+        assertEquals(expected, mObfuscator.unobfuscate(migrated, "testString"));
+        sp.edit().clear().commit();
+    }
+}
@@ -17,20 +17,28 @@
 package com.google.android.vending.licensing;
 
 import com.google.android.vending.licensing.AESObfuscator;
+import com.google.android.vending.licensing.BatchObfuscator;
+import com.google.android.vending.licensing.ByteObfuscator;
 import com.google.android.vending.licensing.Obfuscator;
 import com.google.android.vending.licensing.ValidationException;
+import com.google.android.vending.licensing.util.Base64;
 
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 @RunWith(AndroidJUnit4.class)
@@ -59,6 +67,122 @@ public class AESObfuscatorTest {
                         + "()[]{}<>\u00F6");
     }
 
+    @Test
+    public void obfuscateUnobfuscateBytes() throws Exception {
+        ByteObfuscator obfuscator = (ByteObfuscator) mObfuscator;
+        byte[] key = "testKey".getBytes("UTF-8");
+        for (int length = 0; length < 40; length++) {
+            byte[] original = new byte[length];
+            for (int i = 0; i < length; i++) {
+                original[i] = (byte) (i * 31);
+            }
+            byte[] obfuscated = obfuscator.obfuscate(original, key);
+            assertEquals(obfuscator.getObfuscatedSize(length, key), obfuscated.length);
+            assertArrayEquals(original, obfuscator.unobfuscate(obfuscated, key));
+        }
+    }
+
+    @Test
+    public void obfuscateUnobfuscateBuffers() throws Exception {
+        ByteObfuscator obfuscator = (ByteObfuscator) mObfuscator;
+        byte[] key = "testKey".getBytes("UTF-8");
+        byte[] original = "some policy data".getBytes("UTF-8");
+
+        ByteBuffer obfuscated = ByteBuffer.allocateDirect(100);
+        obfuscated.position(3);
+        int length = obfuscator.obfuscate(ByteBuffer.wrap(original), key, obfuscated);
+        assertEquals(3 + length, obfuscated.position());
+
+        obfuscated.flip();
+        obfuscated.position(3);
+        ByteBuffer out = ByteBuffer.allocate(length + 5);
+        out.position(5);
+        assertEquals(original.length, obfuscator.unobfuscate(obfuscated, key, out));
+        assertEquals(5 + original.length, out.position());
+        byte[] result = new byte[original.length];
+        out.position(5);
+        out.get(result);
+        assertArrayEquals(original, result);
+    }
+
+    @Test
+    public void bytesMatchStrings() throws Exception {
+        ByteObfuscator obfuscator = (ByteObfuscator) mObfuscator;
+        byte[] key = "testKey".getBytes("UTF-8");
+        String obfuscated = mObfuscator.obfuscate("test\u00F6", "testKey");
+        assertArrayEquals("test\u00F6".getBytes("UTF-8"),
+                obfuscator.unobfuscate(Base64.decode(obfuscated), key));
+        assertEquals(obfuscated,
+                Base64.encode(obfuscator.obfuscate("test\u00F6".getBytes("UTF-8"), key)));
+    }
+
+    @Test
+    public void unobfuscateBytesDifferentKey() throws Exception {
+        ByteObfuscator obfuscator = (ByteObfuscator) mObfuscator;
+        byte[] obfuscated = obfuscator.obfuscate(new byte[] {1, 2, 3}, new byte[] {4});
+        try {
+            obfuscator.unobfuscate(obfuscated, new byte[] {5});
+            fail("Should have thrown ValidationException");
+        } catch (ValidationException expected) {
+        }
+        try {
+            obfuscator.obfuscate(ByteBuffer.wrap(new byte[20]), new byte[0],
+                    ByteBuffer.allocate(20));
+            fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void batchMatchesSingleValues() throws Exception {
+        BatchObfuscator obfuscator = (BatchObfuscator) mObfuscator;
+        String[] keys = {"a", "b", "c"};
+        String[] obfuscated = obfuscator.obfuscate(new String[] {"one", null, "three"}, keys);
+        assertEquals(mObfuscator.obfuscate("one", "a"), obfuscated[0]);
+        assertNull(obfuscated[1]);
+        assertEquals(mObfuscator.obfuscate("three", "c"), obfuscated[2]);
+
+        obfuscated[1] = mObfuscator.obfuscate("two", "wrongKey");
+        assertArrayEquals(new String[] {"one", null, "three"},
+                obfuscator.unobfuscate(obfuscated, keys));
+    }
+
+    @Test
+    public void keySharedBetweenInstances() throws Exception {
+        AESObfuscator.prefetchKey(SALT, PACKAGE, DEVICE);
+        Obfuscator other = new AESObfuscator(SALT, PACKAGE, DEVICE);
+        String obfuscated = mObfuscator.obfuscate("test", "testKey");
+        assertEquals("test", other.unobfuscate(obfuscated, "testKey"));
+        assertSame(DerivedKeyRegistry.getKey(SALT, PACKAGE + DEVICE),
+                DerivedKeyRegistry.getKey(SALT.clone(), PACKAGE + DEVICE));
+    }
+
+    @Test
+    public void concurrentUse() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String value = "value" + t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            String obfuscated = mObfuscator.obfuscate(value + i, "testKey");
+                            assertEquals(value + i, mObfuscator.unobfuscate(obfuscated, "testKey"));
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+
     @Test
     public void unobfuscateInvalid() throws Exception {
         try {
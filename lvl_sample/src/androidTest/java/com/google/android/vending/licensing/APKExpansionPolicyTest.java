@@ -27,6 +27,8 @@ import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
+import java.io.File;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -44,6 +46,8 @@ import static org.junit.Assert.assertTrue;
 public class APKExpansionPolicyTest {
 
     private APKExpansionPolicy p;
+    private Context ctx;
+    private AESObfuscator obfuscator;
 
     @Before
     public void initFixture() {
@@ -51,12 +55,12 @@ public class APKExpansionPolicyTest {
             104, -12, 112, 82, -85, -10, -11, 61, 15, 54, 44, -66, -117, -89, -64, 110, -53, 123, 33
         };
 
-        Context ctx = InstrumentationRegistry.getTargetContext();
+        ctx = InstrumentationRegistry.getTargetContext();
         String deviceId = Settings.Secure.getString(
                 ctx.getContentResolver(),
                 Settings.Secure.ANDROID_ID);
-        p = new APKExpansionPolicy(ctx,
-                new AESObfuscator(SALT, ctx.getPackageName(), deviceId));
+        obfuscator = new AESObfuscator(SALT, ctx.getPackageName(), deviceId);
+        p = new APKExpansionPolicy(ctx, obfuscator);
     }
 
     /**
@@ -91,6 +95,69 @@ public class APKExpansionPolicyTest {
                 p.getExpansionURL(1));
     }
 
+    /**
+     * Verify that expansion file data, including the URL expiry, survives a restart.
+     */
+    @Test
+    public void expansionFilesPersisted() {
+        String sampleResponse = "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=77" +
+                "&FILE_URL1=http://example.com/main&FILE_NAME1=main.3.obb&FILE_SIZE1=1234" +
+                "&FILE_NAME2=patch.3.obb";
+        p.processServerResponse(Policy.LICENSED,
+                ResponseData.parse(sampleResponse));
+        p.flush();
+
+        APKExpansionPolicy reloaded = new APKExpansionPolicy(ctx, obfuscator);
+        assertEquals(1, reloaded.getExpansionURLCount());
+        assertEquals("http://example.com/main", reloaded.getExpansionURL(0));
+        assertEquals(77L, reloaded.getExpansionURLExpiry(0));
+        assertEquals("main.3.obb", reloaded.getExpansionFileName(0));
+        assertEquals(1234L, reloaded.getExpansionFileSize(0));
+        assertNull(reloaded.getExpansionURL(1));
+        assertEquals("patch.3.obb", reloaded.getExpansionFileName(1));
+        assertEquals(-1L, reloaded.getExpansionFileSize(1));
+    }
+
+    /**
+     * Verify that files a later LICENSED response leaves out are forgotten.
+     */
+    @Test
+    public void droppedExpansionFilesForgotten() {
+        p.processServerResponse(Policy.LICENSED, ResponseData.parse(
+                "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=77" +
+                "&FILE_URL1=http://example.com/main&FILE_URL2=http://example.com/patch"));
+        assertEquals(2, p.getExpansionURLCount());
+
+        p.processServerResponse(Policy.LICENSED, ResponseData.parse(
+                "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=88" +
+                "&FILE_URL1=http://example.com/main2"));
+        p.flush();
+        APKExpansionPolicy reloaded = new APKExpansionPolicy(ctx, obfuscator);
+        assertEquals(1, reloaded.getExpansionURLCount());
+        assertEquals("http://example.com/main2", reloaded.getExpansionURL(0));
+        assertNull(reloaded.getExpansionURL(1));
+    }
+
+    /**
+     * Verify that malformed file keys and sizes are skipped.
+     */
+    @Test
+    public void malformedExpansionKeysSkipped() {
+        p.processServerResponse(Policy.LICENSED, ResponseData.parse(
+                "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=77" +
+                "&FILE_URL1=http://example.com/main&FILE_SIZE1=big" +
+                "&FILE_URLX=http://example.com/x&FILE_NAME0=zero.obb" +
+                "&FILE_SIZE99999999999=1"));
+        assertEquals(77L, p.getValidityTimestamp());
+        assertEquals(1, p.getExpansionURLCount());
+        assertEquals("http://example.com/main", p.getExpansionURL(0));
+        assertEquals(-1L, p.getExpansionFileSize(0));
+    }
+
     /**
      * Verify that retry counts are cleared after getting a NOT_LICENSED response.
      */
@@ -112,6 +179,47 @@ public class APKExpansionPolicyTest {
         assertEquals(0L, p.getMaxRetries());
     }
 
+    /**
+     * Verify that a response too large for the state file is kept in preferences instead,
+     * and survives a restart.
+     */
+    @Test
+    public void tooLargeStateKeptInPreferences() {
+        File stateFile = new File(ctx.getFilesDir(), "APKExpansionPolicyTest.state");
+        stateFile.delete();
+        APKExpansionPolicy mapped = new APKExpansionPolicy(ctx, obfuscator, stateFile);
+        String response = "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=11&GT=22&GR=33";
+        mapped.processServerResponse(Policy.LICENSED, ResponseData.parse(response));
+
+        // Signed download URLs, together too large for a slot of the file.
+        StringBuilder token = new StringBuilder();
+        while (token.length() < 3000) {
+            token.append("AOTCm0RwlzqFYylBNSCTLJApGH0cYtm9g8mGMdUhKLSLJW4v9VM8GLj4GVlGU5oyW6y3");
+        }
+        StringBuilder extras = new StringBuilder("VT=44&GT=55&GR=66");
+        for (int i = 1; i <= 3; i++) {
+            extras.append("&FILE_URL").append(i).append("=http://example.com/").append(i)
+                    .append("?token%3D").append(token)
+                    .append("&FILE_NAME").append(i).append("=main.").append(i).append(".obb")
+                    .append("&FILE_SIZE").append(i).append("=").append(i * 1000);
+        }
+        response = "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:" + extras;
+        mapped.processServerResponse(Policy.LICENSED, ResponseData.parse(response));
+        assertEquals(44l, mapped.getValidityTimestamp());
+        mapped.flush();
+
+        APKExpansionPolicy reopened = new APKExpansionPolicy(ctx, obfuscator, stateFile);
+        assertEquals(44l, reopened.getValidityTimestamp());
+        assertEquals(3, reopened.getExpansionURLCount());
+        assertEquals("http://example.com/3?token=" + token, reopened.getExpansionURL(2));
+        assertEquals(3000l, reopened.getExpansionFileSize(2));
+        stateFile.delete();
+        ctx.getSharedPreferences("com.google.android.vending.licensing.APKExpansionPolicy",
+                Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
     /**
      * Verify that LU extra is parsed on NOT_LICENSED responses.
      */
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.provider.Settings;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for ExpansionDownloader, run against a local HTTP server.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class ExpansionDownloaderTest {
+
+    private static final byte[] SALT = new byte[] {
+        104, -12, 112, 82, -85, -10, -11, 61, 15, 54, 44, -66, -117, -89, -64, 110, -53, 123, 33
+    };
+    private static final int CHUNK_SIZE = 1000;
+
+    private byte[] content;
+    private RangeServer server;
+    private File directory;
+    private APKExpansionPolicy policy;
+    private ExpansionDownloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[10 * CHUNK_SIZE + 123];
+        new Random(42).nextBytes(content);
+        server = new RangeServer(content);
+
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        directory = new File(ctx.getCacheDir(), "expansion-test");
+        directory.mkdirs();
+        String deviceId = Settings.Secure.getString(
+                ctx.getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+        policy = new APKExpansionPolicy(ctx,
+                new AESObfuscator(SALT, ctx.getPackageName(), deviceId));
+        policy.setExpansionURL(APKExpansionPolicy.MAIN_FILE_URL_INDEX, server.getUrl());
+        policy.setExpansionFileName(APKExpansionPolicy.MAIN_FILE_URL_INDEX, "main.1.test.obb");
+        policy.setExpansionFileSize(APKExpansionPolicy.MAIN_FILE_URL_INDEX, content.length);
+        downloader = new ExpansionDownloader(policy, directory, CHUNK_SIZE, 3);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloader.shutdown();
+        server.close();
+        File file = downloader.getFile(APKExpansionPolicy.MAIN_FILE_URL_INDEX);
+        file.delete();
+        new File(file.getPath() + ExpansionDownloader.PROGRESS_SUFFIX).delete();
+    }
+
+    /**
+     * Verify that a file is downloaded in chunks and assembled correctly.
+     */
+    @Test
+    public void fileDownloaded() throws Exception {
+        final AtomicInteger updates = new AtomicInteger();
+        File file = downloader.download(APKExpansionPolicy.MAIN_FILE_URL_INDEX,
+                new ExpansionDownloader.DownloadListener() {
+                    public void onProgress(int index, long bytesDone, long totalBytes) {
+                        updates.incrementAndGet();
+                        assertEquals(content.length, totalBytes);
+                    }
+                });
+        assertArrayEquals(content, readFile(file));
+        assertEquals(11, server.getRequestCount());
+        assertEquals(11, updates.get());
+        assertTrue(downloader.isComplete(APKExpansionPolicy.MAIN_FILE_URL_INDEX));
+    }
+
+    /**
+     * Verify that an interrupted download only fetches the missing chunks when resumed.
+     */
+    @Test
+    public void downloadResumed() throws Exception {
+        server.failRangeStartingAt(5 * CHUNK_SIZE);
+        try {
+            downloader.download(APKExpansionPolicy.MAIN_FILE_URL_INDEX, null);
+            fail("Expected the failing chunk to abort the download");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(downloader.isComplete(APKExpansionPolicy.MAIN_FILE_URL_INDEX));
+
+        int firstAttempt = server.getRequestCount();
+        server.failRangeStartingAt(-1);
+        File file = downloader.download(APKExpansionPolicy.MAIN_FILE_URL_INDEX, null);
+        assertArrayEquals(content, readFile(file));
+        // With three threads, chunk 5 only starts once three earlier chunks are done, and
+        // those are not fetched again.
+        assertTrue(server.getRequestCount() - firstAttempt <= 8);
+    }
+
+    /**
+     * Verify that a chunk answered with a different range than requested fails instead of
+     * being written at the requested position.
+     */
+    @Test
+    public void mismatchedRangeRejected() throws Exception {
+        server.shiftRangeStartingAt(3 * CHUNK_SIZE);
+        try {
+            downloader.download(APKExpansionPolicy.MAIN_FILE_URL_INDEX, null);
+            fail("Expected the shifted chunk to abort the download");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(downloader.isComplete(APKExpansionPolicy.MAIN_FILE_URL_INDEX));
+
+        server.shiftRangeStartingAt(-1);
+        File file = downloader.download(APKExpansionPolicy.MAIN_FILE_URL_INDEX, null);
+        assertArrayEquals(content, readFile(file));
+    }
+
+    /**
+     * Verify that an expired URL is not used.
+     */
+    @Test
+    public void expiredUrlRejected() throws Exception {
+        String response = "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=1" +
+                "&FILE_URL1=" + server.getUrl() + "&FILE_NAME1=main.1.test.obb" +
+                "&FILE_SIZE1=" + content.length;
+        policy.processServerResponse(Policy.LICENSED, ResponseData.parse(response));
+        try {
+            downloader.download(APKExpansionPolicy.MAIN_FILE_URL_INDEX, null);
+            fail("Expected an expired URL to be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(0, server.getRequestCount());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * A minimal HTTP server answering GET requests with a single Range header.
+     */
+    private static class RangeServer implements Runnable {
+        private final byte[] mContent;
+        private final ServerSocket mSocket;
+        private final AtomicInteger mRequests = new AtomicInteger();
+        private volatile long mFailingStart = -1;
+        private volatile long mShiftedStart = -1;
+
+        RangeServer(byte[] content) throws IOException {
+            mContent = content;
+            mSocket = new ServerSocket(0);
+            Thread thread = new Thread(this, "RangeServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/main.obb";
+        }
+
+        int getRequestCount() {
+            return mRequests.get();
+        }
+
+        void failRangeStartingAt(long start) {
+            mFailingStart = start;
+        }
+
+        /** Answers the range starting at start with the range one byte further on. */
+        void shiftRangeStartingAt(long start) {
+            mShiftedStart = start;
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket client = mSocket.accept();
+                    new Thread(new Runnable() {
+                        public void run() {
+                            serve(client);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket client) {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(client.getInputStream(), "US-ASCII"));
+                long start = 0;
+                long end = mContent.length - 1;
+                boolean ranged = false;
+                String line;
+                while ((line = in.readLine()) != null && line.length() > 0) {
+                    if (line.toLowerCase().startsWith("range: bytes=")) {
+                        String[] range = line.substring("range: bytes=".length()).split("-");
+                        start = Long.parseLong(range[0]);
+                        end = Long.parseLong(range[1]);
+                        ranged = true;
+                    }
+                }
+                mRequests.incrementAndGet();
+                if (ranged && start == mShiftedStart) {
+                    start++;
+                    end = Math.min(end + 1, mContent.length - 1);
+                }
+                OutputStream out = client.getOutputStream();
+                if (start == mFailingStart) {
+                    out.write("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n"
+                            .getBytes("US-ASCII"));
+                } else {
+                    int length = (int) (end - start + 1);
+                    String header = (ranged ? "HTTP/1.1 206 Partial Content\r\n"
+                            + "Content-Range: bytes " + start + "-" + end + "/"
+                            + mContent.length + "\r\n" : "HTTP/1.1 200 OK\r\n")
+                            + "Content-Length: " + length + "\r\nConnection: close\r\n\r\n";
+                    out.write(header.getBytes("US-ASCII"));
+                    out.write(mContent, (int) start, length);
+                }
+                out.flush();
+                client.close();
+            } catch (IOException e) {
+                // The client gave up on the request.
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.provider.Settings;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for ExpansionValidationCache.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ExpansionValidationCacheTest {
+
+    private static final byte[] SALT = new byte[] {
+        104, -12, 112, 82, -85, -10, -11, 61, 15, 54, 44, -66, -117, -89, -64, 110, -53, 123, 33
+    };
+
+    private Context ctx;
+    private Obfuscator obfuscator;
+    private File file;
+    private ExpansionValidationCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        ctx = InstrumentationRegistry.getTargetContext();
+        String deviceId = Settings.Secure.getString(
+                ctx.getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+        obfuscator = new AESObfuscator(SALT, ctx.getPackageName(), deviceId);
+        file = new File(ctx.getCacheDir(), "main.1.cache.obb");
+        write(file, "contents", false);
+        cache = new ExpansionValidationCache(ctx, obfuscator);
+        cache.invalidate(file);
+    }
+
+    @After
+    public void tearDown() {
+        cache.invalidate(file);
+        file.delete();
+    }
+
+    /**
+     * Verify that a validated file stays valid, also for a new cache instance.
+     */
+    @Test
+    public void validationRemembered() {
+        assertFalse(cache.isValid(file));
+        cache.markValid(file);
+        assertTrue(cache.isValid(file));
+        assertTrue(new ExpansionValidationCache(ctx, obfuscator).isValid(file));
+    }
+
+    /**
+     * Verify that changing or deleting the file invalidates its entry.
+     */
+    @Test
+    public void changedFileInvalidated() throws IOException {
+        cache.markValid(file);
+        write(file, " and more", true);
+        assertFalse(cache.isValid(file));
+
+        cache.markValid(file);
+        assertTrue(cache.isValid(file));
+        file.delete();
+        assertFalse(cache.isValid(file));
+    }
+
+    private static void write(File file, String data, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(data.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.provider.Settings;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for ExpansionVerifier.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ExpansionVerifierTest {
+
+    private static final byte[] SALT = new byte[] {
+        104, -12, 112, 82, -85, -10, -11, 61, 15, 54, 44, -66, -117, -89, -64, 110, -53, 123, 33
+    };
+    private static final int SEGMENT_SIZE = 1000;
+
+    private byte[] content;
+    private File file;
+    private APKExpansionPolicy policy;
+    private ExpansionVerifier verifier;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[10 * SEGMENT_SIZE + 7];
+        new Random(7).nextBytes(content);
+
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        file = new File(ctx.getCacheDir(), "main.1.verify.obb");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        String deviceId = Settings.Secure.getString(
+                ctx.getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+        policy = new APKExpansionPolicy(ctx,
+                new AESObfuscator(SALT, ctx.getPackageName(), deviceId));
+        policy.setExpansionFileName(APKExpansionPolicy.MAIN_FILE_URL_INDEX, file.getName());
+        policy.setExpansionFileSize(APKExpansionPolicy.MAIN_FILE_URL_INDEX, content.length);
+        verifier = new ExpansionVerifier(policy, ctx.getCacheDir(), SEGMENT_SIZE, 3);
+    }
+
+    @After
+    public void tearDown() {
+        verifier.shutdown();
+        file.delete();
+    }
+
+    /**
+     * Verify that the combined segment CRCs equal the CRC of the whole file.
+     */
+    @Test
+    public void crc32MatchesWholeFile() throws Exception {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        long value = crc.getValue();
+        byte[] expected = new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value
+        };
+
+        Result result = verify(ExpansionVerifier.CRC32, expected);
+        assertEquals(0, result.error);
+        assertArrayEquals(expected, result.checksum);
+        assertEquals(content.length, result.bytesDone);
+    }
+
+    /**
+     * Verify that the SHA-256 mode hashes the digests of each segment.
+     */
+    @Test
+    public void sha256SegmentsComputed() throws Exception {
+        MessageDigest root = MessageDigest.getInstance("SHA-256");
+        for (int start = 0; start < content.length; start += SEGMENT_SIZE) {
+            MessageDigest segment = MessageDigest.getInstance("SHA-256");
+            segment.update(content, start, Math.min(SEGMENT_SIZE, content.length - start));
+            root.update(segment.digest());
+        }
+
+        Result result = verify(ExpansionVerifier.SHA256_SEGMENTS, null);
+        assertEquals(0, result.error);
+        assertArrayEquals(root.digest(), result.checksum);
+    }
+
+    /**
+     * Verify that a wrong checksum or size is reported as a failure.
+     */
+    @Test
+    public void mismatchesReported() throws Exception {
+        Result result = verify(ExpansionVerifier.CRC32, new byte[4]);
+        assertEquals(ExpansionVerifier.ERROR_CHECKSUM_MISMATCH, result.error);
+        assertNull(result.checksum);
+
+        policy.setExpansionFileSize(APKExpansionPolicy.MAIN_FILE_URL_INDEX, content.length + 1);
+        result = verify(ExpansionVerifier.CRC32, null);
+        assertEquals(ExpansionVerifier.ERROR_SIZE_MISMATCH, result.error);
+    }
+
+    /**
+     * Verify that a verification rejected after shutdown() does not leak the file it opened.
+     */
+    @Test
+    public void fileClosedWhenRejected() throws Exception {
+        verifier.shutdown();
+        File fds = new File("/proc/self/fd");
+        int before = fds.list().length;
+        for (int i = 0; i < 50; i++) {
+            try {
+                verifier.verify(APKExpansionPolicy.MAIN_FILE_URL_INDEX, ExpansionVerifier.CRC32,
+                        null, new Result());
+                fail("Expected verify() to be rejected after shutdown()");
+            } catch (RejectedExecutionException expected) {
+            }
+        }
+        // Leaving some room for descriptors opened by other threads.
+        assertTrue(fds.list().length < before + 10);
+    }
+
+    private Result verify(int algorithm, byte[] expected) throws InterruptedException {
+        Result result = new Result();
+        verifier.verify(APKExpansionPolicy.MAIN_FILE_URL_INDEX, algorithm, expected, result);
+        assertTrue(result.done.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static class Result implements ExpansionVerifier.VerificationListener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long bytesDone;
+        volatile byte[] checksum;
+        volatile int error;
+
+        public synchronized void onProgress(int index, long bytesDone, long totalBytes) {
+            this.bytesDone = Math.max(this.bytesDone, bytesDone);
+        }
+
+        public void onVerified(int index, byte[] checksum) {
+            this.checksum = checksum;
+            done.countDown();
+        }
+
+        public void onFailed(int index, int error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for ExpansionZipFile.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ExpansionZipFileTest {
+
+    private File main;
+    private File patch;
+
+    @Before
+    public void setUp() throws IOException {
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        main = new File(ctx.getCacheDir(), "main.1.zip.obb");
+        patch = new File(ctx.getCacheDir(), "patch.1.zip.obb");
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(main));
+        try {
+            putStored(out, "assets/", new byte[0]);
+            putStored(out, "assets/a.txt", "main a".getBytes("UTF-8"));
+            putStored(out, "assets/b.txt", "main b".getBytes("UTF-8"));
+            out.putNextEntry(new ZipEntry("assets/deflated.txt"));
+            out.write("compressed".getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        out = new ZipOutputStream(new FileOutputStream(patch));
+        try {
+            putStored(out, "assets/b.txt", "patched b".getBytes("UTF-8"));
+            putStored(out, "assets/c.txt", "patch c".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        main.delete();
+        patch.delete();
+    }
+
+    /**
+     * Verify that stored entries are read and that the patch overlays the main file.
+     */
+    @Test
+    public void entriesOverlaid() throws IOException {
+        ExpansionZipFile zip = new ExpansionZipFile(new File[] { main, patch });
+        try {
+            assertEquals(4, zip.size());
+            assertArrayEquals("main a".getBytes("UTF-8"), toArray(zip.getBuffer("assets/a.txt")));
+            assertArrayEquals("patched b".getBytes("UTF-8"),
+                    toArray(zip.getBuffer("assets/b.txt")));
+            assertArrayEquals("patch c".getBytes("UTF-8"), toArray(zip.getBuffer("assets/c.txt")));
+            assertEquals(9L, zip.getLength("assets/b.txt"));
+            assertTrue(zip.contains("assets/deflated.txt"));
+            assertFalse(zip.contains("assets/"));
+            assertNull(zip.getBuffer("assets/missing.txt"));
+            assertEquals(-1L, zip.getLength("assets/missing.txt"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Verify that compressed entries are refused instead of returned as raw data.
+     */
+    @Test
+    public void compressedEntryRejected() throws IOException {
+        ExpansionZipFile zip = new ExpansionZipFile(new File[] { main });
+        try {
+            zip.getBuffer("assets/deflated.txt");
+            fail("Expected compressed entry to be rejected");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void putStored(ZipOutputStream out, String name, byte[] data)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.google.android.vending.licensing.util.Base64;
+
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for LicenseChecker.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LicenseCheckerTest {
+
+    private static String sPublicKey;
+
+    private static synchronized String publicKey() throws Exception {
+        if (sPublicKey == null) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(1024);
+            sPublicKey = Base64.encode(generator.generateKeyPair().getPublic().getEncoded());
+        }
+        return sPublicKey;
+    }
+
+    /** Records the results a check delivers. */
+    private static class RecordingCallback implements LicenseCheckerCallback {
+        final List<String> mResults = new ArrayList<String>();
+
+        public synchronized void allow(int reason) {
+            mResults.add("allow " + reason);
+        }
+
+        public synchronized void dontAllow(int reason) {
+            mResults.add("dontAllow " + reason);
+        }
+
+        public synchronized void applicationError(int errorCode) {
+            mResults.add("applicationError " + errorCode);
+        }
+    }
+
+    private static LicenseChecker newChecker(Policy policy) throws Exception {
+        return new LicenseChecker(InstrumentationRegistry.getTargetContext(), policy, publicKey());
+    }
+
+    @Test
+    public void cachedResultDeliveredBeforeDestroy() throws Exception {
+        StrictPolicy policy = new StrictPolicy();
+        policy.processServerResponse(Policy.LICENSED, null);
+        LicenseChecker checker = newChecker(policy);
+        RecordingCallback callback = new RecordingCallback();
+
+        checker.checkAccess(callback);
+        checker.onDestroy();
+
+        assertEquals(1, callback.mResults.size());
+        assertEquals("allow " + Policy.LICENSED, callback.mResults.get(0));
+    }
+
+    /** A policy whose cached data takes until {@link #finishLoading()} to load. */
+    private static class SlowLoadingPolicy extends StrictPolicy
+            implements BackgroundLoadingPolicy {
+        private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+        SlowLoadingPolicy() {
+            processServerResponse(Policy.LICENSED, null);
+        }
+
+        void finishLoading() {
+            mLoaded.countDown();
+        }
+
+        public boolean isLoaded() {
+            return mLoaded.getCount() == 0;
+        }
+
+        @Override
+        public boolean allowAccess() {
+            try {
+                mLoaded.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.allowAccess();
+        }
+    }
+
+    @Test
+    public void checkDoesNotWaitForLoading() throws Exception {
+        SlowLoadingPolicy policy = new SlowLoadingPolicy();
+        LicenseChecker checker = newChecker(policy);
+        final CountDownLatch answered = new CountDownLatch(1);
+        final List<String> results = new ArrayList<String>();
+        LicenseCheckerCallback callback = new RecordingCallback() {
+            @Override
+            public synchronized void allow(int reason) {
+                super.allow(reason);
+                results.addAll(mResults);
+                answered.countDown();
+            }
+        };
+
+        // Returns while the policy is still loading.
+        checker.checkAccess(callback);
+        assertEquals(1, answered.getCount());
+
+        policy.finishLoading();
+        assertTrue(answered.await(10, TimeUnit.SECONDS));
+        assertEquals("allow " + Policy.LICENSED, results.get(0));
+
+        // Loaded: answered on the calling thread.
+        RecordingCallback cached = new RecordingCallback();
+        checker.checkAccess(cached);
+        assertEquals("allow " + Policy.LICENSED, cached.mResults.get(0));
+        checker.onDestroy();
+    }
+
+    @Test
+    public void rateLimitedCheckReportsCachedResponse() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.getSharedPreferences("com.google.android.vending.licensing.RateLimitedPolicy",
+                Context.MODE_PRIVATE).edit().clear().commit();
+        RateLimitedPolicy policy = new RateLimitedPolicy(context,
+                new AESObfuscator(new byte[] {1, 2, 3}, context.getPackageName(), "device"),
+                new StrictPolicy(), 1, 60 * 60 * 1000);
+        policy.processServerResponse(Policy.NOT_LICENSED, null);
+        assertTrue(policy.tryAcquire());
+        LicenseChecker checker = newChecker(policy);
+        RecordingCallback callback = new RecordingCallback();
+
+        // Over budget, so answered without the server.
+        checker.checkAccess(callback);
+
+        assertEquals(1, callback.mResults.size());
+        assertEquals("dontAllow " + Policy.NOT_LICENSED, callback.mResults.get(0));
+        checker.onDestroy();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.FutureTask;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for LogKeyValueStore.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LogKeyValueStoreTest {
+
+    private File file;
+    private LogKeyValueStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                "LogKeyValueStoreTest.log");
+        file.delete();
+        store = LogKeyValueStore.open(file);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        file.delete();
+    }
+
+    private LogKeyValueStore reopen() throws Exception {
+        store.close();
+        store = LogKeyValueStore.open(file);
+        return store;
+    }
+
+    @Test
+    public void valuesPersisted() throws Exception {
+        assertSame(store, LogKeyValueStore.open(file));
+        assertTrue(store.edit().putString("a", "1").putString("b", "2").commit());
+        assertTrue(store.edit().putString("a", "3").remove("b").putString("c", "4").commit());
+        assertEquals("3", store.getString("a", null));
+
+        reopen();
+        assertEquals("3", store.getString("a", null));
+        assertNull(store.getString("b", null));
+        assertEquals("4", store.getString("c", null));
+        assertEquals("default", store.getString("d", "default"));
+    }
+
+    @Test
+    public void changesInvisibleUntilCommit() throws Exception {
+        KeyValueStore.Editor editor = store.edit().putString("a", "1");
+        assertNull(store.getString("a", null));
+        editor.commit();
+        assertEquals("1", store.getString("a", null));
+    }
+
+    @Test
+    public void failedCommitInvisible() throws Exception {
+        store.edit().putString("a", "1").commit();
+        // writeUTF cannot encode more than 64 KB.
+        StringBuilder large = new StringBuilder();
+        while (large.length() <= 65535) {
+            large.append("0123456789");
+        }
+        assertFalse(store.edit().putString("a", "2").putString("b", large.toString()).commit());
+        assertEquals("1", store.getString("a", null));
+        assertNull(store.getString("b", null));
+
+        assertTrue(store.edit().putString("c", "3").commit());
+        reopen();
+        assertEquals("1", store.getString("a", null));
+        assertEquals("3", store.getString("c", null));
+    }
+
+    @Test
+    public void tornCommitDropped() throws Exception {
+        store.edit().putString("a", "1").commit();
+        store.edit().putString("a", "2").commit();
+        long length = file.length();
+        store.close();
+
+        // Cut the last commit short.
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.getChannel().truncate(length - 3);
+        out.close();
+
+        store = LogKeyValueStore.open(file);
+        assertEquals("1", store.getString("a", null));
+        store.edit().putString("b", "3").commit();
+        reopen();
+        assertEquals("1", store.getString("a", null));
+        assertEquals("3", store.getString("b", null));
+    }
+
+    @Test
+    public void logCompacted() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            store.edit().putString("counter", Integer.toString(i)).putString("fixed", "x")
+                    .commit();
+        }
+        // Compaction runs on the persistence thread.
+        FutureTask<Void> barrier = new FutureTask<Void>(new Runnable() {
+            public void run() {
+            }
+        }, null);
+        PersistenceThread.getHandler().post(barrier);
+        barrier.get();
+
+        assertTrue("log not compacted: " + file.length(), file.length() < 16 * 1024);
+        reopen();
+        assertEquals("999", store.getString("counter", null));
+        assertEquals("x", store.getString("fixed", null));
+    }
+
+    @Test
+    public void obfuscatedPreferences() throws Exception {
+        Obfuscator obfuscator = new AESObfuscator(new byte[] {1, 2, 3}, "package", "device");
+        PreferenceObfuscator preferences = new PreferenceObfuscator(store, obfuscator);
+        preferences.putString("key", "value");
+        preferences.putLong("long", 1234);
+        preferences.commit();
+
+        reopen();
+        preferences = new PreferenceObfuscator(store, obfuscator);
+        assertEquals("value", preferences.getString("key", null));
+        assertEquals(1234, preferences.getLong("long", 0));
+    }
+}
@@ -19,6 +19,7 @@ package com.google.android.vending.licensing;
 import com.google.android.vending.licensing.AESObfuscator;
 import com.google.android.vending.licensing.Obfuscator;
 import com.google.android.vending.licensing.PreferenceObfuscator;
+import com.google.android.vending.licensing.util.Base64;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -27,12 +28,17 @@ import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 /**
@@ -46,6 +52,7 @@ public class ObfuscatedPreferencesTest {
             "com.android.vending.licnese.test.ObfuscatedPreferencePopulatedTest";
     private SharedPreferences sp;
     private PreferenceObfuscator op;
+    private Obfuscator o;
 
     @Before
     public void initFixture() {
@@ -59,7 +66,7 @@ public class ObfuscatedPreferencesTest {
         String deviceId = Settings.Secure.getString(
                 ctx.getContentResolver(),
                 Settings.Secure.ANDROID_ID);
-        Obfuscator o = new AESObfuscator(SALT, ctx.getPackageName(), deviceId);
+        o = new AESObfuscator(SALT, ctx.getPackageName(), deviceId);
         op = new PreferenceObfuscator(sp, o);
 
         // Populate with test data
@@ -101,4 +108,141 @@ public class ObfuscatedPreferencesTest {
         assertEquals("Android rocks", op.getString("corruptdata", "Android rocks"));
     }
 
+    @Test
+    public void readsCached() {
+        final AtomicInteger unobfuscated = new AtomicInteger();
+        Obfuscator counting = new Obfuscator() {
+            public String obfuscate(String original, String key) {
+                return o.obfuscate(original, key);
+            }
+
+            public String unobfuscate(String obfuscated, String key)
+                    throws ValidationException {
+                unobfuscated.incrementAndGet();
+                return o.unobfuscate(obfuscated, key);
+            }
+        };
+        PreferenceObfuscator cached = new PreferenceObfuscator(sp, counting);
+        assertEquals("Hello world", cached.getString("testString", "fail"));
+        assertEquals("Hello world", cached.getString("testString", "fail"));
+        assertEquals(1, unobfuscated.get());
+
+        cached.putString("testString", "Goodbye");
+        cached.commit();
+        assertEquals("Goodbye", cached.getString("testString", "fail"));
+        assertEquals(1, unobfuscated.get());
+    }
+
+    @Test
+    public void cacheSeesExternalChanges() {
+        assertEquals("Hello world", op.getString("testString", "fail"));
+        PreferenceObfuscator other = new PreferenceObfuscator(sp, o);
+        other.putString("testString", "Changed");
+        other.commit();
+        assertEquals("Changed", op.getString("testString", "fail"));
+
+        sp.edit().remove("testString").commit();
+        assertEquals("fail", op.getString("testString", "fail"));
+    }
+
+    @Test
+    public void putAndGetNumbers() {
+        long[] longs = {0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE, 1356998400000L};
+        int[] ints = {0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int i = 0; i < longs.length; i++) {
+            op.putLong("long" + i, longs[i]);
+        }
+        for (int i = 0; i < ints.length; i++) {
+            op.putInt("int" + i, ints[i]);
+        }
+        op.commit();
+
+        PreferenceObfuscator fresh = new PreferenceObfuscator(sp, o);
+        for (int i = 0; i < longs.length; i++) {
+            assertEquals(longs[i], fresh.getLong("long" + i, 42));
+        }
+        for (int i = 0; i < ints.length; i++) {
+            assertEquals(ints[i], fresh.getInt("int" + i, 42));
+        }
+        assertEquals(42, fresh.getLong("noExist", 42));
+        assertEquals(42, fresh.getInt("testString", 42));
+    }
+
+    @Test
+    public void textNumbersMigrated() {
+        op.putString("number", "1234567890123");
+        op.commit();
+        String text = sp.getString("number", null);
+
+        assertEquals(1234567890123L, op.getLong("number", 0));
+        op.commit();
+        assertFalse(text.equals(sp.getString("number", null)));
+        assertEquals(1234567890123L, new PreferenceObfuscator(sp, o).getLong("number", 0));
+    }
+
+    @Test
+    public void numbersAsTextWithoutByteObfuscator() {
+        Obfuscator stringsOnly = new Obfuscator() {
+            public String obfuscate(String original, String key) {
+                return o.obfuscate(original, key);
+            }
+
+            public String unobfuscate(String obfuscated, String key)
+                    throws ValidationException {
+                return o.unobfuscate(obfuscated, key);
+            }
+        };
+        PreferenceObfuscator text = new PreferenceObfuscator(sp, stringsOnly);
+        text.putLong("long", -5);
+        text.putInt("int", 7);
+        text.commit();
+        assertEquals("-5", text.getString("long", null));
+        assertEquals(7, text.getInt("int", 0));
+        assertEquals(-5, op.getLong("long", 0));
+    }
+
+    @Test
+    public void putAndGetBytes() {
+        byte[] value = new byte[300];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        op.putBytes("bytes", value);
+        op.commit();
+        String stored = sp.getString("bytes", null);
+
+        PreferenceObfuscator fresh = new PreferenceObfuscator(sp, o);
+        assertArrayEquals(value, fresh.getBytes("bytes", null));
+        assertArrayEquals(new byte[0], fresh.getBytes("noExist", new byte[0]));
+        // Encoded once: shorter than the same bytes as obfuscated Base64 text.
+        op.putString("text", Base64.encode(value));
+        op.commit();
+        assertTrue(stored.length() < sp.getString("text", null).length());
+    }
+
+    @Test
+    public void textBytesMigrated() {
+        byte[] value = {5, 6, 7};
+        op.putString("bytes", Base64.encode(value));
+        op.commit();
+        String text = sp.getString("bytes", null);
+
+        assertArrayEquals(value, op.getBytes("bytes", null));
+        op.commit();
+        assertFalse(text.equals(sp.getString("bytes", null)));
+        assertArrayEquals(value, new PreferenceObfuscator(sp, o).getBytes("bytes", null));
+    }
+
+    @Test
+    public void putAndGetStrings() {
+        op.putStrings(new String[] {"a", "b", "c"}, new String[] {"one", "two", "three"});
+        op.commit();
+        sp.edit().putString("b", "foo").commit();
+
+        String[] values = op.getStrings(new String[] {"c", "b", "testString", "noExist", "a"},
+                "default");
+        assertArrayEquals(new String[] {"three", "default", "Hello world", "default", "one"},
+                values);
+    }
+
 }
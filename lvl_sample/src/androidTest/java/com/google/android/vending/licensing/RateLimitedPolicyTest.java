@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.content.Context;
+import android.provider.Settings;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for RateLimitedPolicy.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RateLimitedPolicyTest {
+
+    private static final byte[] SALT = new byte[] {
+        104, -12, 112, 82, -85, -10, -11, 61, 15, 54, 44, -66, -117, -89, -64, 110, -53, 123, 33
+    };
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private Context ctx;
+    private Obfuscator obfuscator;
+    private final List<RateLimitedPolicy> policies = new ArrayList<RateLimitedPolicy>();
+
+    @Before
+    public void setUp() {
+        ctx = InstrumentationRegistry.getTargetContext();
+        ctx.getSharedPreferences("com.google.android.vending.licensing.RateLimitedPolicy",
+                Context.MODE_PRIVATE).edit().clear().commit();
+        String deviceId = Settings.Secure.getString(
+                ctx.getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+        obfuscator = new AESObfuscator(SALT, ctx.getPackageName(), deviceId);
+    }
+
+    @After
+    public void tearDown() {
+        // Keep writes still held back from landing in the next test's preferences.
+        for (RateLimitedPolicy policy : policies) {
+            policy.flush();
+        }
+    }
+
+    private RateLimitedPolicy newPolicy(Policy policy, int maxChecks) {
+        RateLimitedPolicy rateLimited =
+                new RateLimitedPolicy(ctx, obfuscator, policy, maxChecks, HOUR_MS);
+        policies.add(rateLimited);
+        return rateLimited;
+    }
+
+    /**
+     * Verify that only the configured number of checks is allowed per window.
+     */
+    @Test
+    public void checksLimited() {
+        RateLimitedPolicy p = newPolicy(new StrictPolicy(), 3);
+        assertTrue(p.tryAcquire());
+        assertTrue(p.tryAcquire());
+        assertTrue(p.tryAcquire());
+        assertFalse(p.tryAcquire());
+    }
+
+    /**
+     * Verify that the used budget survives creating a new instance.
+     */
+    @Test
+    public void budgetPersisted() {
+        RateLimitedPolicy p = newPolicy(new StrictPolicy(), 1);
+        assertTrue(p.tryAcquire());
+        p.flush();
+
+        RateLimitedPolicy restarted = newPolicy(new StrictPolicy(), 1);
+        assertFalse(restarted.tryAcquire());
+    }
+
+    /**
+     * Verify that a stored budget that cannot be read counts as used up.
+     */
+    @Test
+    public void tamperedBudgetEmpty() {
+        ctx.getSharedPreferences("com.google.android.vending.licensing.RateLimitedPolicy",
+                Context.MODE_PRIVATE).edit().putString("fullAt", "AAAA").commit();
+        RateLimitedPolicy p = newPolicy(new StrictPolicy(), 3);
+        assertFalse(p.tryAcquire());
+    }
+
+    /**
+     * Verify that licensing decisions come from the wrapped policy.
+     */
+    @Test
+    public void decisionsDelegated() {
+        StrictPolicy strict = new StrictPolicy();
+        RateLimitedPolicy p = newPolicy(strict, 1);
+        assertFalse(p.allowAccess());
+        p.processServerResponse(Policy.LICENSED, null);
+        assertTrue(p.allowAccess());
+        assertTrue(strict.allowAccess());
+    }
+
+    /**
+     * Verify that a check over budget reports the last response, also after
+     * a restart.
+     */
+    @Test
+    public void cachedResponseReported() {
+        RateLimitedPolicy p = newPolicy(new StrictPolicy(), 1);
+        assertEquals(Policy.RETRY, p.getCachedResponse());
+        p.processServerResponse(Policy.NOT_LICENSED, null);
+        assertEquals(Policy.NOT_LICENSED, p.getCachedResponse());
+        p.flush();
+
+        RateLimitedPolicy restarted = newPolicy(new StrictPolicy(), 1);
+        assertEquals(Policy.NOT_LICENSED, restarted.getCachedResponse());
+        restarted.processServerResponse(Policy.LICENSED, null);
+        assertEquals(Policy.LICENSED, restarted.getCachedResponse());
+    }
+}
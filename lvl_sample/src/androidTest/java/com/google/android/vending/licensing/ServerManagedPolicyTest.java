@@ -23,11 +23,17 @@ import com.google.android.vending.licensing.ResponseData;
 import com.google.android.vending.licensing.ServerManagedPolicy;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.provider.Settings;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
+import java.io.File;
+import java.net.URLEncoder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -44,20 +50,28 @@ import static org.junit.Assert.assertTrue;
 @SmallTest
 public class ServerManagedPolicyTest {
 
+    private static final byte[] SALT = new byte[] {
+        104, -12, 112, 82, -85, -10, -11, 61, 15, 54, 44, -66, -117, -89, -64, 110, -53, 123, 33
+    };
+
     private ServerManagedPolicy p;
 
     @Before
     public void initFixture() {
-        final byte[] SALT = new byte[] {
-            104, -12, 112, 82, -85, -10, -11, 61, 15, 54, 44, -66, -117, -89, -64, 110, -53, 123, 33
-        };
+        p = newPolicy();
+    }
+
+    private ServerManagedPolicy newPolicy() {
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        return new ServerManagedPolicy(ctx.getApplicationContext(), newObfuscator());
+    }
 
+    private Obfuscator newObfuscator() {
         Context ctx = InstrumentationRegistry.getTargetContext();
         String deviceId = Settings.Secure.getString(
                 ctx.getApplicationContext().getContentResolver(),
                 Settings.Secure.ANDROID_ID);
-        p = new ServerManagedPolicy(ctx.getApplicationContext(),
-                new AESObfuscator(SALT, ctx.getPackageName(), deviceId));
+        return new AESObfuscator(SALT, ctx.getPackageName(), deviceId);
     }
 
     /**
@@ -137,4 +151,205 @@ public class ServerManagedPolicyTest {
         assertEquals(3l, p.getMaxRetries());
     }
 
+    /**
+     * Verify that flushed policy data is picked up by a new policy instance.
+     */
+    @Test
+    public void flushedDataPersisted() {
+        String sampleResponse = "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=44&GT=55&GR=66";
+        p.processServerResponse(Policy.LICENSED,
+                ResponseData.parse(sampleResponse));
+        p.processServerResponse(Policy.RETRY, null);
+        p.flush();
+
+        ServerManagedPolicy reloaded = newPolicy();
+        assertEquals(44l, reloaded.getValidityTimestamp());
+        assertEquals(55l, reloaded.getRetryUntil());
+        assertEquals(66l, reloaded.getMaxRetries());
+        assertEquals(1l, reloaded.getRetryCount());
+    }
+
+    /**
+     * Verify that readers running alongside processServerResponse() only see values that
+     * came from one response. Response k carries VT=base+k, GT=base+k and GR=k, so reading
+     * the fields in that order must never give a later response's VT with an earlier GT or
+     * GR, and the validity of every LICENSED response must be honored.
+     */
+    @Test
+    public void concurrentReadsSeeWholeResponses() throws Exception {
+        final long base = System.currentTimeMillis() + 60 * 60 * 1000;
+        final int responses = 2000;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        p.processServerResponse(Policy.LICENSED, response(base, 0));
+
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    long last = 0;
+                    while (!done.get() && failure.get() == null) {
+                        if (!p.allowAccess()) {
+                            failure.set("access denied during a LICENSED response");
+                        }
+                        long k = p.getValidityTimestamp() - base;
+                        long retryUntil = p.getRetryUntil() - base;
+                        long maxRetries = p.getMaxRetries();
+                        if (k < last || k > retryUntil || retryUntil > maxRetries
+                                || p.getRetryCount() != 0) {
+                            failure.set("VT=base+" + k + " GT=base+" + retryUntil
+                                    + " GR=" + maxRetries + " after VT=base+" + last);
+                        }
+                        last = k;
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (int k = 1; k <= responses && failure.get() == null; k++) {
+            p.processServerResponse(Policy.LICENSED, response(base, k));
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get(), failure.get());
+        assertEquals(base + responses, p.getValidityTimestamp());
+        assertEquals(responses, p.getMaxRetries());
+    }
+
+    private static ResponseData response(long base, long k) {
+        return ResponseData.parse("0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=" + (base + k) +
+                "&GT=" + (base + k) + "&GR=" + k);
+    }
+
+    /**
+     * Verify that a policy reports its data as loaded once it has been read.
+     */
+    @Test
+    public void loadedAfterFirstRead() {
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        ServerManagedPolicy multiProcess =
+                new ServerManagedPolicy(ctx.getApplicationContext(), newObfuscator(), true);
+        assertFalse(multiProcess.isLoaded());
+        multiProcess.allowAccess();
+        assertTrue(multiProcess.isLoaded());
+        p.allowAccess();
+        assertTrue(p.isLoaded());
+    }
+
+    /**
+     * Verify that a response seen by one multi-process policy is visible to another one
+     * right away, without going through preferences.
+     */
+    @Test
+    public void stateSharedBetweenProcesses() {
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        ServerManagedPolicy first =
+                new ServerManagedPolicy(ctx.getApplicationContext(), newObfuscator(), true);
+        ServerManagedPolicy second =
+                new ServerManagedPolicy(ctx.getApplicationContext(), newObfuscator(), true);
+        // Load both before the response, as separate processes would have.
+        second.getValidityTimestamp();
+
+        String sampleResponse = "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=" + Long.MAX_VALUE +
+                "&GT=77&GR=88";
+        first.processServerResponse(Policy.LICENSED, ResponseData.parse(sampleResponse));
+        assertEquals(Long.MAX_VALUE, second.getValidityTimestamp());
+        assertEquals(77l, second.getRetryUntil());
+        assertTrue(second.allowAccess());
+    }
+
+    /**
+     * Verify that a response too large for the shared file is not replaced by the older
+     * response in the file.
+     */
+    @Test
+    public void unsharedResponseKept() throws Exception {
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        ServerManagedPolicy first =
+                new ServerManagedPolicy(ctx.getApplicationContext(), newObfuscator(), true);
+        ServerManagedPolicy second =
+                new ServerManagedPolicy(ctx.getApplicationContext(), newObfuscator(), true);
+        second.getValidityTimestamp();
+        first.processServerResponse(Policy.LICENSED, ResponseData.parse(
+                "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=" + Long.MAX_VALUE));
+        assertTrue(second.allowAccess());
+
+        StringBuilder url = new StringBuilder("https://play.google.com/store/apps/details?id=");
+        while (url.length() < 10000) {
+            url.append("com.example.android.market.licensing");
+        }
+        first.processServerResponse(Policy.NOT_LICENSED, ResponseData.parse(
+                "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:LU=" +
+                URLEncoder.encode(url.toString(), "UTF-8")));
+        assertFalse(first.allowAccess());
+        assertEquals(url.toString(), first.getLicensingUrl());
+    }
+
+    /**
+     * Verify that values stored one preference per field by earlier versions are still read.
+     */
+    @Test
+    public void legacyPreferencesMigrated() {
+        Context ctx = InstrumentationRegistry.getTargetContext();
+        SharedPreferences sp = ctx.getApplicationContext().getSharedPreferences(
+                "com.google.android.vending.licensing.ServerManagedPolicy", Context.MODE_PRIVATE);
+        sp.edit().clear().commit();
+        PreferenceObfuscator op = new PreferenceObfuscator(sp, newObfuscator());
+        op.putString("lastResponse", Integer.toString(Policy.LICENSED));
+        op.putString("validityTimestamp", "77");
+        op.putString("retryUntil", "88");
+        op.putString("maxRetries", "99");
+        op.putString("retryCount", "2");
+        op.commit();
+
+        ServerManagedPolicy migrated = newPolicy();
+        assertEquals(77l, migrated.getValidityTimestamp());
+        assertEquals(88l, migrated.getRetryUntil());
+        assertEquals(99l, migrated.getMaxRetries());
+        assertEquals(2l, migrated.getRetryCount());
+        assertNull(migrated.getLicensingUrl());
+    }
+
+    /**
+     * Verify that a policy keeping its state in a file imports the preferences once and then
+     * writes only to the file.
+     */
+    @Test
+    public void stateKeptInFile() {
+        Context ctx = InstrumentationRegistry.getTargetContext().getApplicationContext();
+        SharedPreferences sp = ctx.getSharedPreferences(
+                "com.google.android.vending.licensing.ServerManagedPolicy", Context.MODE_PRIVATE);
+        sp.edit().clear().commit();
+        File stateFile = new File(ctx.getFilesDir(), "ServerManagedPolicyTest.state");
+        stateFile.delete();
+
+        String response = "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=11&GT=22&GR=33";
+        p.processServerResponse(Policy.LICENSED, ResponseData.parse(response));
+        p.flush();
+        String stored = sp.getString("state", null);
+
+        ServerManagedPolicy mapped = new ServerManagedPolicy(ctx, newObfuscator(), stateFile);
+        assertEquals(11l, mapped.getValidityTimestamp());
+        response = "0|1579380448|com.example.android.market.licensing|1|" +
+                "ADf8I4ajjgc1P5ZI1S1DN/YIPIUNPECLrg==|1279578835423:VT=44&GT=55&GR=66";
+        mapped.processServerResponse(Policy.LICENSED, ResponseData.parse(response));
+        mapped.flush();
+        assertEquals(stored, sp.getString("state", null));
+
+        ServerManagedPolicy reopened = new ServerManagedPolicy(ctx, newObfuscator(), stateFile);
+        assertEquals(44l, reopened.getValidityTimestamp());
+        assertEquals(55l, reopened.getRetryUntil());
+        assertEquals(66l, reopened.getMaxRetries());
+        stateFile.delete();
+    }
+
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for SharedPolicyStateFile.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedPolicyStateFileTest {
+
+    // Layout details the tests tamper with.
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_CURRENT_SLOT = 8;
+    private static final int SLOT_SIZE = 8184;
+    private static final int SLOT_RECORD = 16;
+
+    private File file;
+    private Obfuscator obfuscator;
+
+    @Before
+    public void setUp() {
+        file = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                "SharedPolicyStateFileTest.state");
+        file.delete();
+        obfuscator = new AESObfuscator(new byte[] {1, 2, 3}, "package", "device");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static PolicyState state(long validityTimestamp) {
+        return new PolicyState(Policy.LICENSED, 1000, validityTimestamp, 0, 0, 0, null);
+    }
+
+    @Test
+    public void stateReadBack() throws Exception {
+        SharedPolicyStateFile writer = new SharedPolicyStateFile(file, obfuscator, true);
+        assertNull(writer.read());
+        assertTrue(writer.write(state(11)));
+        assertTrue(writer.write(state(22)));
+
+        SharedPolicyStateFile reader = new SharedPolicyStateFile(file, obfuscator, true);
+        assertEquals(22, reader.read().validityTimestamp);
+        assertEquals(1000, reader.read().lastResponseTime);
+        assertTrue(writer.write(state(33)));
+        assertEquals(33, reader.read().validityTimestamp);
+    }
+
+    @Test
+    public void interruptedWriteKeepsPreviousState() throws Exception {
+        new SharedPolicyStateFile(file, obfuscator, true).write(state(11));
+
+        // A writer that died while filling the other slot.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(OFFSET_CURRENT_SLOT);
+        int other = raf.readInt() == 0 ? 1 : 0;
+        raf.seek(OFFSET_SEQUENCE);
+        int sequence = raf.readInt();
+        raf.seek(OFFSET_SEQUENCE);
+        raf.writeInt(sequence | 1);
+        raf.seek(16 + other * SLOT_SIZE + SLOT_RECORD);
+        raf.write(new byte[100]);
+        raf.close();
+
+        SharedPolicyStateFile reopened = new SharedPolicyStateFile(file, obfuscator, true);
+        assertEquals(11, reopened.read().validityTimestamp);
+        assertTrue(reopened.write(state(22)));
+        assertEquals(22, new SharedPolicyStateFile(file, obfuscator, true).read()
+                .validityTimestamp);
+    }
+
+    @Test
+    public void corruptRecordRejected() throws Exception {
+        new SharedPolicyStateFile(file, obfuscator, true).write(state(11));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(OFFSET_CURRENT_SLOT);
+        int current = raf.readInt();
+        raf.seek(16 + current * SLOT_SIZE + SLOT_RECORD + 5);
+        int b = raf.read();
+        raf.seek(16 + current * SLOT_SIZE + SLOT_RECORD + 5);
+        raf.write(b ^ 1);
+        raf.close();
+
+        assertNull(new SharedPolicyStateFile(file, obfuscator, true).read());
+    }
+
+    @Test
+    public void damagedCurrentSlotFallsBack() throws Exception {
+        SharedPolicyStateFile writer = new SharedPolicyStateFile(file, obfuscator, true);
+        writer.write(state(11));
+        writer.write(state(22));
+        writer.flush();
+
+        // A crash while flushing, after the slot was made current.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(OFFSET_CURRENT_SLOT);
+        int current = raf.readInt();
+        raf.seek(16 + current * SLOT_SIZE + SLOT_RECORD);
+        raf.write(new byte[100]);
+        raf.close();
+
+        assertEquals(11, new SharedPolicyStateFile(file, obfuscator, true).read()
+                .validityTimestamp);
+    }
+
+    @Test
+    public void tooLargeStateRejected() throws Exception {
+        SharedPolicyStateFile writer = new SharedPolicyStateFile(file, obfuscator, true);
+        assertTrue(writer.write(state(11)));
+        StringBuilder url = new StringBuilder();
+        while (url.length() < SLOT_SIZE) {
+            url.append("https://play.google.com/");
+        }
+        assertFalse(writer.write(new PolicyState(Policy.NOT_LICENSED, 1000, 0, 0, 0, 0,
+                url.toString())));
+        assertEquals(11, writer.read().validityTimestamp);
+
+        assertTrue(writer.clear());
+        assertNull(writer.read());
+        assertNull(new SharedPolicyStateFile(file, obfuscator, true).read());
+        assertTrue(writer.write(state(22)));
+        assertEquals(22, new SharedPolicyStateFile(file, obfuscator, true).read()
+                .validityTimestamp);
+    }
+}
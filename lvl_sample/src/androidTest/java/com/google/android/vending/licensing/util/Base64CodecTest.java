@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing.util;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for Base64Codec.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class Base64CodecTest {
+    private static final String TAG = "Base64CodecTest";
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void matchesBase64() throws Exception {
+        for (int length = 0; length < 100; length++) {
+            byte[] data = randomBytes(length);
+            String encoded = Base64.encode(data);
+            assertEquals(encoded, Base64Codec.encode(data));
+            assertArrayEquals(data, Base64Codec.decode(encoded));
+            for (boolean doPadding : new boolean[] {false, true}) {
+                String webSafe = Base64.encodeWebSafe(data, doPadding);
+                assertEquals(webSafe, Base64Codec.encodeWebSafe(data, doPadding));
+                assertArrayEquals(data, Base64Codec.decodeWebSafe(webSafe));
+            }
+        }
+    }
+
+    @Test
+    public void lenientInputAccepted() throws Exception {
+        byte[] data = randomBytes(100);
+        String encoded = Base64.encode(data);
+        assertArrayEquals(data, Base64Codec.decode(encoded.substring(0, 50) + "\n "
+                + encoded.substring(50) + "\n"));
+        // Incomplete padding.
+        assertArrayEquals(Base64.decode("QQ="), Base64Codec.decode("QQ="));
+        assertArrayEquals(Base64.decode("QUI"), Base64Codec.decode("QUI"));
+    }
+
+    @Test
+    public void invalidInputRejected() throws Exception {
+        String encoded = Base64.encode(randomBytes(30));
+        assertInvalid(encoded.substring(0, 10) + "*" + encoded.substring(11));
+        assertInvalid(encoded.substring(0, 10) + "-" + encoded.substring(11));
+        assertInvalid("QQ==QUJD");
+        assertInvalid("Q");
+        try {
+            Base64Codec.decodeWebSafe("QUJD+");
+            fail("'+' accepted by the web safe decoder");
+        } catch (Base64DecoderException expected) {
+        }
+    }
+
+    private static void assertInvalid(String encoded) {
+        String message = null;
+        try {
+            Base64.decode(encoded);
+            fail("Base64 decoded invalid input: " + encoded);
+        } catch (Base64DecoderException expected) {
+            message = expected.getMessage();
+        }
+        try {
+            Base64Codec.decode(encoded);
+            fail("Decoded invalid input: " + encoded);
+        } catch (Base64DecoderException expected) {
+            assertEquals(message, expected.getMessage());
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void dispatchBenchmark() throws Exception {
+        assertNotNull(Base64Codec.getImplementation());
+        // A license signature, and a larger payload.
+        for (int length : new int[] {256, 32 * 1024}) {
+            byte[] data = randomBytes(length);
+            String encoded = Base64.encode(data);
+            int iterations = Math.max(100, 4 * 1024 * 1024 / length);
+            long[] times = new long[4];
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    Base64.decode(encoded);
+                }
+                long decoded = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    Base64Codec.decode(encoded);
+                }
+                long dispatchDecoded = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    Base64.encode(data);
+                }
+                long encodedTime = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    Base64Codec.encode(data);
+                }
+                long end = System.nanoTime();
+                // The first round is warm-up.
+                if (round > 0) {
+                    times[0] += decoded - start;
+                    times[1] += dispatchDecoded - decoded;
+                    times[2] += encodedTime - dispatchDecoded;
+                    times[3] += end - encodedTime;
+                }
+            }
+            long runs = 4L * iterations;
+            Log.i(TAG, length + " bytes: decode " + times[0] / runs + " ns, "
+                    + Base64Codec.getImplementation() + " " + times[1] / runs
+                    + " ns; encode " + times[2] / runs + " ns, "
+                    + Base64Codec.getImplementation() + " " + times[3] / runs + " ns");
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing.util;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for Base64InputStream and Base64OutputStream.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class Base64StreamTest {
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] ascii(String s) throws Exception {
+        return s.getBytes("US-ASCII");
+    }
+
+    /**
+     * Writes the data in pieces of varying size.
+     */
+    private static String encode(byte[] data, boolean webSafe, boolean doPadding)
+            throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Base64OutputStream out = new Base64OutputStream(bytes, webSafe, doPadding);
+        int off = 0;
+        for (int piece = 0; off < data.length; piece = (piece + 1) % 7) {
+            int len = Math.min(piece * piece * 50, data.length - off);
+            if (piece == 1) {
+                out.write(data[off]);
+                len = 1;
+            } else {
+                out.write(data, off, len);
+            }
+            off += len;
+        }
+        out.close();
+        return new String(bytes.toByteArray(), "US-ASCII");
+    }
+
+    /**
+     * Reads everything, in pieces of varying size.
+     */
+    private static byte[] decode(InputStream encoded, boolean webSafe) throws Exception {
+        Base64InputStream in = new Base64InputStream(encoded, webSafe);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        for (int piece = 0; ; piece = (piece + 1) % 5) {
+            if (piece == 0) {
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                int count = in.read(buffer, 0, piece * 250);
+                if (count < 0) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] decode(String encoded, boolean webSafe) throws Exception {
+        return decode(new ByteArrayInputStream(ascii(encoded)), webSafe);
+    }
+
+    @Test
+    public void encodeMatchesBase64() throws Exception {
+        for (int length : new int[] {0, 1, 2, 3, 4, 5, 3071, 3072, 3073, 20000}) {
+            byte[] data = randomBytes(length);
+            assertEquals(Base64.encode(data), encode(data, false, true));
+            assertEquals(Base64.encodeWebSafe(data, false), encode(data, true, false));
+        }
+    }
+
+    @Test
+    public void decodeMatchesBase64() throws Exception {
+        for (int length : new int[] {0, 1, 2, 3, 4, 5, 3071, 3072, 3073, 20000}) {
+            byte[] data = randomBytes(length);
+            assertArrayEquals(data, decode(Base64.encode(data), false));
+            assertArrayEquals(data, decode(Base64.encodeWebSafe(data, false), true));
+        }
+    }
+
+    @Test
+    public void decodeAcrossChunkBoundaries() throws Exception {
+        byte[] data = randomBytes(10000);
+        String encoded = Base64.encode(data);
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < encoded.length(); i += 76) {
+            lines.append(encoded, i, Math.min(i + 76, encoded.length())).append("\r\n");
+        }
+        // A stream handing out a few bytes at a time splits quartets, line
+        // breaks and the padding.
+        final byte[] text = ascii(lines.toString());
+        InputStream trickle = new ByteArrayInputStream(text) {
+            private int mCall;
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1 + mCall++ % 6));
+            }
+        };
+        assertArrayEquals(data, decode(trickle, false));
+    }
+
+    @Test
+    public void skipDecodedBytes() throws Exception {
+        byte[] data = randomBytes(10000);
+        Base64InputStream in = new Base64InputStream(
+                new ByteArrayInputStream(ascii(Base64.encode(data))));
+        assertEquals(5000, in.skip(5000));
+        assertEquals(data[5000] & 0xff, in.read());
+        assertEquals(4999, in.skip(10000));
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void paddingAndTrailingBytesMatchBase64() throws Exception {
+        String[] inputs = {
+            "", " ", "bDY=", "bDY", "bDY=\n", "bDY= ", "bDY=\n ", "QQ==", "QQ=", "QQ===",
+            "QQ==\n\n", "QQ= =", "QQ=x!z=", "QQ==QUJD", "QQ==QUJD=", "QUI==", "QUI=\n",
+            "QUI=\n\n", "QUI=x", "QUJD=", "Q===", "=", "QUJDR", "QUJD*", "QU JD\tRA==\r\n",
+        };
+        for (String input : inputs) {
+            assertSameAsDecode(input);
+        }
+    }
+
+    @Test
+    public void invalidInputRejected() throws Exception {
+        String encoded = Base64.encode(randomBytes(6000));
+        assertSameAsDecode(encoded.substring(0, 5000) + "*" + encoded.substring(5001));
+        assertSameAsDecode(encoded + " ");
+        assertSameAsDecode(encoded.substring(0, 5000) + "=" + encoded.substring(5001));
+    }
+
+    /**
+     * Checks that the stream and {@link Base64#decode(String)} both decode the
+     * text to the same bytes, or both reject it with the same message.
+     */
+    private static void assertSameAsDecode(String encoded) throws Exception {
+        byte[] expected = null;
+        String message = null;
+        try {
+            expected = Base64.decode(encoded);
+        } catch (Base64DecoderException e) {
+            message = e.getMessage();
+        }
+        byte[] actual;
+        try {
+            actual = decode(encoded, false);
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof Base64DecoderException);
+            assertEquals("Rejected \"" + encoded + "\"", message, e.getCause().getMessage());
+            return;
+        }
+        assertNull("Decoded \"" + encoded + "\": " + message, message);
+        assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing.util;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for Base64.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class Base64Test {
+    private static final String TAG = "Base64Test";
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] ascii(String s) throws Exception {
+        return s.getBytes("US-ASCII");
+    }
+
+    @Test
+    public void decodeAllLengths() throws Exception {
+        for (int length = 0; length < 100; length++) {
+            byte[] data = randomBytes(length, length);
+            assertArrayEquals(data, Base64.decode(Base64.encode(data)));
+            assertArrayEquals(data, Base64.decodeWebSafe(Base64.encodeWebSafe(data, false)));
+            assertArrayEquals(data, Base64.decodeWebSafe(Base64.encodeWebSafe(data, true)));
+        }
+    }
+
+    @Test
+    public void decodeMatchesBytewise() throws Exception {
+        byte[] encoded = ascii(Base64.encode(randomBytes(300, 1)));
+        for (int off = 0; off < 12; off++) {
+            for (int len = 0; len + off <= encoded.length; len += 4) {
+                assertArrayEquals(Base64.decode(encoded, off, len, false),
+                        Base64.decode(encoded, off, len, true));
+            }
+        }
+    }
+
+    @Test
+    public void decodeWithWhitespace() throws Exception {
+        byte[] data = randomBytes(200, 2);
+        String encoded = Base64.encode(data);
+        assertArrayEquals(data, Base64.decode(encoded.substring(0, 60) + "\n"
+                + encoded.substring(60, 121) + " \t" + encoded.substring(121) + "\n"));
+        // Line breaks every 76 characters.
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < encoded.length(); i += 76) {
+            lines.append(encoded, i, Math.min(i + 76, encoded.length())).append('\n');
+        }
+        assertArrayEquals(data, Base64.decode(lines.toString()));
+    }
+
+    @Test
+    public void badCharacterRejected() throws Exception {
+        String encoded = Base64.encode(randomBytes(60, 3));
+        assertBadInput(encoded.substring(0, 17) + "*" + encoded.substring(18));
+        // Web safe characters are not in the standard alphabet, and vice versa.
+        assertBadInput(encoded.substring(0, 40) + "-" + encoded.substring(41));
+        try {
+            Base64.decodeWebSafe(encoded.substring(0, 40) + "+" + encoded.substring(41));
+            fail("'+' accepted by the web safe decoder");
+        } catch (Base64DecoderException expected) {
+        }
+    }
+
+    @Test
+    public void badPaddingRejected() throws Exception {
+        String encoded = Base64.encode(randomBytes(60, 4));
+        assertBadInput(encoded.substring(0, 20) + "=" + encoded.substring(21));
+        assertBadInput(encoded.substring(0, 22) + "==" + encoded.substring(24));
+        assertBadInput(encoded + "A");
+    }
+
+    private static void assertBadInput(String encoded) {
+        try {
+            Base64.decode(encoded);
+            fail("Decoded bad input: " + encoded);
+        } catch (Base64DecoderException expected) {
+        }
+    }
+
+    @Test
+    public void encodeIntoArray() throws Exception {
+        for (int length = 0; length < 20; length++) {
+            byte[] data = randomBytes(length, length);
+            byte[] out = new byte[Base64.encodedLength(length, true) + 3];
+            int written = Base64.encodeTo(data, 0, length, out, 3);
+            assertEquals(Base64.encode(data), new String(out, 3, written, "US-ASCII"));
+
+            // Unpadded output fits an exactly sized array.
+            out = new byte[Base64.encodedLength(length, false)];
+            assertEquals(out.length, Base64.encodeWebSafeTo(data, 0, length, out, 0, false));
+            assertEquals(Base64.encodeWebSafe(data, false), new String(out, "US-ASCII"));
+
+            ByteBuffer buffer = ByteBuffer.allocate(40);
+            buffer.put((byte) 0);
+            written = Base64.encodeTo(data, 0, length, buffer);
+            assertEquals(1 + written, buffer.position());
+            assertEquals(Base64.encode(data), new String(buffer.array(), 1, written, "US-ASCII"));
+        }
+    }
+
+    @Test
+    public void decodeIntoArray() throws Exception {
+        for (int length = 0; length < 20; length++) {
+            byte[] data = randomBytes(length, length);
+            byte[] encoded = ascii(Base64.encode(data));
+            assertEquals(length, Base64.decodedLength(encoded, 0, encoded.length));
+            byte[] out = new byte[length + 2];
+            assertEquals(length, Base64.decodeTo(encoded, 0, encoded.length, out, 2));
+            assertArrayEquals(data, Arrays.copyOfRange(out, 2, out.length));
+
+            byte[] webSafe = ascii(" " + Base64.encodeWebSafe(data, false) + "\n");
+            assertEquals(length, Base64.decodedLength(webSafe, 0, webSafe.length));
+            out = new byte[length];
+            assertEquals(length, Base64.decodeWebSafeTo(webSafe, 0, webSafe.length, out, 0));
+            assertArrayEquals(data, out);
+
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            assertEquals(length, Base64.decodeTo(encoded, 0, encoded.length, buffer));
+            assertEquals(length, buffer.position());
+            assertArrayEquals(data, buffer.array());
+        }
+    }
+
+    @Test
+    public void destinationTooSmall() throws Exception {
+        byte[] data = randomBytes(100, 6);
+        byte[] encoded = ascii(Base64.encode(data));
+        try {
+            Base64.decodeTo(encoded, 0, encoded.length, new byte[99], 0);
+            fail("Decoded into too small an array");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Base64.encodeTo(data, 0, data.length, new byte[encoded.length], 1);
+            fail("Encoded into too small an array");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void wordAtATimeBenchmark() throws Exception {
+        // A license signature is 256 bytes, the public key around 300.
+        byte[] encoded = ascii(Base64.encode(randomBytes(294, 5)));
+        int iterations = 20000;
+        long bytewise = 0;
+        long wordAtATime = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                Base64.decode(encoded, 0, encoded.length, false);
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                Base64.decode(encoded, 0, encoded.length, true);
+            }
+            long end = System.nanoTime();
+            // The first round is warm-up.
+            if (round > 0) {
+                bytewise += middle - start;
+                wordAtATime += end - middle;
+            }
+        }
+        Log.i(TAG, "decode of " + encoded.length + " bytes: bytewise "
+                + bytewise / (4 * iterations) + " ns, word at a time "
+                + wordAtATime / (4 * iterations) + " ns");
+        assertEquals(294, Base64.decode(encoded).length);
+    }
+}
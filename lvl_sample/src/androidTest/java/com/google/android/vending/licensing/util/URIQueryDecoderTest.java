@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.vending.licensing.util;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for URIQueryDecoder.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class URIQueryDecoderTest {
+
+    /** Queries both decoders agree on. */
+    private static final String[] QUERIES = {
+            "VT=1279578835423&GT=1281978835423&GR=10",
+            "LU=https%3A%2F%2Fplay.google.com%2Fstore%3Fid%3Dcom.example",
+            "a=b+c&d+e=f",
+            "a=%41%42%43&b=%e2%82%ac&c=caf%C3%A9",
+            "a=plus%2Bsign",
+            "a=&b",
+            "a=1&a=2&a=3",
+            "FILE_URL1=http%3A%2F%2Fexample.com%2Fmain&FILE_NAME1=main.1.obb&FILE_SIZE1=100",
+    };
+
+    /** Queries both decoders reject. */
+    private static final String[] MALFORMED = {
+            "a=%4",
+            "a=%",
+            "a=%zz",
+            "a=%G1",
+            "%=b",
+            "a=b=c",
+    };
+
+    /**
+     * The decoder before it was rewritten, which split the query with a
+     * Scanner and decoded each part with URLDecoder.
+     */
+    private static Map<String, String> decodeWithScanner(String rawQuery) throws Exception {
+        Map<String, String> results = new HashMap<String, String>();
+        Scanner scanner = new Scanner(rawQuery);
+        scanner.useDelimiter("&");
+        while (scanner.hasNext()) {
+            String[] valuePair = scanner.next().split("=");
+            String value;
+            if (valuePair.length == 1) {
+                value = null;
+            } else if (valuePair.length == 2) {
+                value = URLDecoder.decode(valuePair[1], "UTF-8");
+            } else {
+                throw new IllegalArgumentException("query parameter invalid");
+            }
+            results.put(URLDecoder.decode(valuePair[0], "UTF-8"), value);
+        }
+        return results;
+    }
+
+    private static Map<String, String> decode(CharSequence rawQuery) {
+        Map<String, String> results = new HashMap<String, String>();
+        URIQueryDecoder.decodeQuery(rawQuery, results);
+        return results;
+    }
+
+    @Test
+    public void matchesScannerDecoder() throws Exception {
+        for (String query : QUERIES) {
+            Map<String, String> expected = decodeWithScanner(query);
+            assertEquals(query, expected, decode(query));
+            // Any CharSequence, not only a String.
+            assertEquals(query, expected, decode(new StringBuilder(query)));
+
+            Map<String, String> fromUri = new HashMap<String, String>();
+            URIQueryDecoder.DecodeQuery(new URI("http://localhost/?" + query), fromUri);
+            assertEquals(query, expected, fromUri);
+        }
+    }
+
+    @Test
+    public void decodesEscapes() {
+        Map<String, String> results = decode("a=b+c&n%20m=%E2%82%AC+1");
+        assertEquals("b c", results.get("a"));
+        assertEquals("\u20AC 1", results.get("n m"));
+    }
+
+    @Test
+    public void emptyAndDuplicateParameters() {
+        Map<String, String> results = decode("a=&b&c=1&c=2");
+        assertEquals(3, results.size());
+        assertNull(results.get("a"));
+        assertNull(results.get("b"));
+        assertEquals("2", results.get("c"));
+    }
+
+    @Test
+    public void malformedRejected() {
+        for (String query : MALFORMED) {
+            try {
+                decodeWithScanner(query);
+                fail("Scanner decoder accepted " + query);
+            } catch (Exception expected) {
+            }
+            try {
+                decode(query);
+                fail("Should have thrown IllegalArgumentException for " + query);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
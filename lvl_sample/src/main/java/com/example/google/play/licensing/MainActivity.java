@@ -16,9 +16,11 @@
 
 package com.example.google.play.licensing;
 
+import com.google.android.vending.licensing.AESGCMObfuscator;
 import com.google.android.vending.licensing.AESObfuscator;
 import com.google.android.vending.licensing.LicenseChecker;
 import com.google.android.vending.licensing.LicenseCheckerCallback;
+import com.google.android.vending.licensing.Obfuscator;
 import com.google.android.vending.licensing.Policy;
 import com.google.android.vending.licensing.ServerManagedPolicy;
 
@@ -28,6 +30,7 @@ import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.provider.Settings.Secure;
@@ -87,10 +90,16 @@ public class MainActivity extends Activity {
 
         // Library calls this when it's done.
         mLicenseCheckerCallback = new MyLicenseCheckerCallback();
+        // AES-GCM where available; it also reads data written by AESObfuscator.
+        Obfuscator obfuscator;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            obfuscator = new AESGCMObfuscator(SALT, getPackageName(), deviceId);
+        } else {
+            obfuscator = new AESObfuscator(SALT, getPackageName(), deviceId);
+        }
         // Construct the LicenseChecker with a policy.
         mChecker = new LicenseChecker(
-            this, new ServerManagedPolicy(this,
-            new AESObfuscator(SALT, getPackageName(), deviceId)),
+            this, new ServerManagedPolicy(this, obfuscator),
             BASE64_PUBLIC_KEY);
         doCheck();
     }